@@ -0,0 +1,70 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.lang.management.*;
+import java.util.*;
+
+/// Minimal benchmark harness: runs a piece of code a few times to warm up and then
+/// reports average time, garbage collections and allocated bytes per iteration.
+public class Bench {
+
+    public interface Body {
+        /// returns some value depending on the work done so it can not be optimized away.
+        public long run() throws Exception;
+    }
+
+    public static int Warmups = 5;
+    public static int Iterations = 10;
+
+    private static long sink_ = 0;
+
+    public static void Measure(String name, Body body) throws Exception {
+        for (int ii=0; ii<Warmups; ++ii)
+            sink_ += body.run();
+
+        long gcCount = GcCount(), gcTime = GcTime();
+        long allocated = AllocatedBytes();
+        long start = System.nanoTime();
+        for (int ii=0; ii<Iterations; ++ii)
+            sink_ += body.run();
+        long elapsed = System.nanoTime() - start;
+        allocated = AllocatedBytes() - allocated;
+        gcCount = GcCount() - gcCount;
+        gcTime = GcTime() - gcTime;
+
+        System.out.println(String.format("%-40s %10.3f ms/op %10d KB/op %5d GCs (%d ms)",
+                                         name, elapsed/1e6/Iterations,
+                                         allocated < 0 ? -1 : allocated/1024/Iterations,
+                                         gcCount, gcTime));
+    }
+
+    /// returns a value depending on all the results so far, print it to keep the JIT honest.
+    public static long Sink() {
+        return sink_;
+    }
+
+    private static long GcCount() {
+        long count = 0;
+        for (Iterator<GarbageCollectorMXBean> iter = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+             iter.hasNext();)
+            count += Math.max(0, iter.next().getCollectionCount());
+        return count;
+    }
+
+    private static long GcTime() {
+        long time = 0;
+        for (Iterator<GarbageCollectorMXBean> iter = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+             iter.hasNext();)
+            time += Math.max(0, iter.next().getCollectionTime());
+        return time;
+    }
+
+    /// bytes allocated by the current thread, -1 if the JVM can not tell.
+    private static long AllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+}
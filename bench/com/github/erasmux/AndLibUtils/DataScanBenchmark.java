@@ -0,0 +1,67 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.nio.*;
+import java.util.*;
+
+/// Compares the .data scan loop of JNIRenamer with boxed TreeSet<Long> lookups (as it
+/// used to be) against the allocation free LongHashSet lookups, over a synthetic
+/// multi-MB .data section with a few (name, signature) pairs planted in it.
+/// usage: benchmark DataScanBenchmark [.data size in MB]
+public class DataScanBenchmark {
+
+    public static void main(String args[]) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int words = megabytes*1024*1024/4;
+
+        // random words, some of them pointing into a fake .rodata:
+        Random random = new Random(42);
+        final IntBuffer data = ByteBuffer.allocateDirect(words*4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        for (int ii=0; ii<words; ++ii)
+            data.put(ii, random.nextInt(8) == 0 ? 0x10000+random.nextInt(0x1000) : random.nextInt());
+
+        final Set<Long> funcTree = new TreeSet<Long>();
+        final Set<Long> sigTree = new TreeSet<Long>();
+        final LongHashSet funcSet = new LongHashSet();
+        final LongHashSet sigSet = new LongHashSet();
+        for (int ii=0; ii<16; ++ii) {
+            long func = 0x10000+random.nextInt(0x1000), sig = 0x10000+random.nextInt(0x1000);
+            funcTree.add(Long.valueOf(func));
+            sigTree.add(Long.valueOf(sig));
+            funcSet.add(func);
+            sigSet.add(sig);
+            int at = random.nextInt(words-1);
+            data.put(at, (int) func);
+            data.put(at+1, (int) sig);
+        }
+
+        System.out.println(String.format("Scanning %d MB of .data for %d functions:", megabytes, funcSet.size()));
+        Bench.Measure("boxed TreeSet<Long>", new Bench.Body() {
+                public long run() {
+                    long count = 0;
+                    Long lastValue = null;
+                    for (int ii=0; ii<data.limit(); ++ii) {
+                        Long curValue = Long.valueOf(data.get(ii) & 0xFFFFFFFFL);
+                        if (lastValue != null && funcTree.contains(lastValue) && sigTree.contains(curValue))
+                            ++count;
+                        lastValue = curValue;
+                    }
+                    return count;
+                }
+            });
+        Bench.Measure("primitive LongHashSet", new Bench.Body() {
+                public long run() {
+                    long count = 0;
+                    long lastValue = -1;
+                    for (int ii=0; ii<data.limit(); ++ii) {
+                        long curValue = data.get(ii) & 0xFFFFFFFFL;
+                        if (funcSet.contains(lastValue) && sigSet.contains(curValue))
+                            ++count;
+                        lastValue = curValue;
+                    }
+                    return count;
+                }
+            });
+        System.out.println("(checksum "+Bench.Sink()+")");
+    }
+
+}
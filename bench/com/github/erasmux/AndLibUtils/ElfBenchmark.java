@@ -0,0 +1,97 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+
+/// Benchmarks of the I/O paths of the library on synthetic ELF files generated at setup:
+/// BufferedRandomAccessFile.readUnsignedInt with different buffer sizes (and the mapped
+/// backend for comparison), ElfReader.seekString, ElfReader.readSections and a full
+/// JNIRenamer.findRenameFunc, with the sections scanned sequentially and in concurrent
+/// chunks. The metadata cache is disabled so every run does the work.
+/// usage: benchmark ElfBenchmark [.rodata size in MB] [.data size in MB]
+public class ElfBenchmark {
+
+    public static void main(String args[]) throws Exception {
+        int rodataMB = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int dataMB = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        MetadataCache.Enabled = false;
+
+        System.out.println(String.format("Generating synthetic ELF with %d MB .rodata and %d MB .data...",
+                                         rodataMB, dataMB));
+        final File elf = SyntheticElf.GenerateTemp(rodataMB*1024*1024, dataMB*1024*1024, 64);
+        final long length = elf.length();
+
+        int[] bufferSizes = { 256, 1024, 4096, 16384, 65536 };
+        for (int ii=0; ii<bufferSizes.length; ++ii) {
+            final int bufferSize = bufferSizes[ii];
+            Bench.Measure("readUnsignedInt buffer "+bufferSize, new Bench.Body() {
+                    public long run() throws IOException {
+                        BufferedRandomAccessFile raf = new BufferedRandomAccessFile(elf, "r");
+                        try {
+                            raf.setBufferSize(bufferSize);
+                            long sum = 0;
+                            for (long ofs=0; ofs+4 <= length; ofs += 4)
+                                sum += raf.readUnsignedInt();
+                            return sum;
+                        } finally {
+                            raf.close();
+                        }
+                    }
+                });
+        }
+        Bench.Measure("readUnsignedInt mapped", new Bench.Body() {
+                public long run() throws IOException {
+                    MappedRandomAccessFile raf = new MappedRandomAccessFile(elf, "r");
+                    try {
+                        long sum = 0;
+                        for (long ofs=0; ofs+4 <= length; ofs += 4)
+                            sum += raf.readUnsignedInt();
+                        return sum;
+                    } finally {
+                        raf.close();
+                    }
+                }
+            });
+
+        Bench.Measure("ElfReader.readSections", new Bench.Body() {
+                public long run() throws IOException {
+                    ElfReader reader = new ElfReader(elf, "r");
+                    try {
+                        reader.readSections();
+                        return reader.sectionAddr(".data");
+                    } finally {
+                        reader.close();
+                    }
+                }
+            });
+
+        Bench.Measure("ElfReader.seekString .rodata", new Bench.Body() {
+                public long run() throws IOException {
+                    ElfReader reader = new ElfReader(elf, "r");
+                    try {
+                        reader.readSections();
+                        reader.seekSection(".rodata", 0);
+                        return reader.seekString(SyntheticElf.Signature);
+                    } finally {
+                        reader.close();
+                    }
+                }
+            });
+
+        for (int parallel=0; parallel<2; ++parallel) {
+            SectionScanner.Parallel = parallel == 1;
+            Bench.Measure("JNIRenamer.findRenameFunc"+(parallel == 1 ? " parallel" : " sequential"), new Bench.Body() {
+                    public long run() throws IOException {
+                        JNIRenamer renamer = new JNIRenamer(elf, elf.getPath(), true);
+                        try {
+                            return renamer.findRenameFunc(SyntheticElf.FunctionSig(), null, null, null, null);
+                        } finally {
+                            renamer.close();
+                        }
+                    }
+                });
+        }
+
+        System.out.println("(checksum "+Bench.Sink()+")");
+    }
+
+}
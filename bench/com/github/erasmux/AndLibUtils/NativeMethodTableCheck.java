@@ -0,0 +1,86 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.util.*;
+
+/// Checks NativeMethodTable against JNIRenamer.findRenameFunc (JNI find): in synthetic 32
+/// bit REL and 64 bit RELA libraries (where some fnPtrs are filled by symbol relocations,
+/// so they are 0 in the file) and in the libraries given, every JNINativeMethod entry
+/// planted must be in the table, and for every function of the table the table must give
+/// the same addresses find prints.
+/// usage: benchmark NativeMethodTableCheck [<library> ...]
+public class NativeMethodTableCheck {
+
+    public static void main(String args[]) throws Exception {
+        MetadataCache.Enabled = false; // check the scans, not the cache
+        int failures = 0;
+
+        int natives = 8;
+        List<String> planted = new ArrayList<String>();
+        planted.add(SyntheticElf.FunctionSig());
+        for (int ii=1; ii<natives; ++ii)
+            planted.add("native_func"+ii+"(I)V");
+        failures += Check(SyntheticElf.GenerateTemp(64*1024, 64*1024, natives, false), "synthetic REL", planted);
+        failures += Check(SyntheticElf.GenerateTemp(64*1024, 64*1024, natives, true), "synthetic RELA", planted);
+
+        for (int ii=0; ii<args.length; ++ii)
+            failures += Check(new File(args[ii]), args[ii], Collections.<String>emptyList());
+
+        System.out.println(String.format("%d libraries, %d failures", args.length+2, failures));
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    /// returns the number of failures of the library.
+    static int Check(File file, String label, List<String> planted) throws IOException {
+        JNIRenamer renamer = new JNIRenamer(file, file.getPath(), true);
+        try {
+            NativeMethodTable table = renamer.nativeMethods();
+            int failures = 0;
+            for (int ii=0; ii<planted.size(); ++ii) {
+                if (table.find(planted.get(ii)).isEmpty()) {
+                    System.out.println(label+": planted "+planted.get(ii)+" is not in the table");
+                    ++failures;
+                }
+            }
+
+            Set<String> sigs = new TreeSet<String>();
+            for (int ii=0; ii<table.size(); ++ii)
+                sigs.add(table.entries().get(ii).functionSig());
+            for (Iterator<String> iter = sigs.iterator(); iter.hasNext();) {
+                String sig = iter.next();
+                List<Long> want = FindAddrs(renamer, sig);
+                List<Long> got = new ArrayList<Long>();
+                List<NativeMethodTable.Entry> entries = table.find(sig);
+                for (int ii=0; ii<entries.size(); ++ii)
+                    got.add(Long.valueOf(entries.get(ii).addr_));
+                Collections.sort(got);
+                if (!got.equals(want)) {
+                    System.out.println(label+": "+sig+" at "+got+" in the table but at "+want+" by find");
+                    ++failures;
+                }
+            }
+            System.out.println(String.format("%s: %d entries, %d functions", label, table.size(), sigs.size()));
+            return failures;
+        } finally {
+            renamer.close();
+        }
+    }
+
+    /// the addresses JNI find prints for the function, sorted.
+    static List<Long> FindAddrs(JNIRenamer renamer, String functionSig) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        renamer.findRenameFunc(functionSig, null, out, null, null);
+        out.flush();
+        List<Long> addrs = new ArrayList<Long>();
+        BufferedReader in = new BufferedReader(new StringReader(bytes.toString()));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.startsWith("0x"))
+                addrs.add(Long.valueOf(Long.parseLong(line.substring(2).trim(), 16)));
+        }
+        Collections.sort(addrs);
+        return addrs;
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.nio.*;
+import java.util.*;
+
+/// Randomized check that scanning a section in concurrent chunks finds exactly what a
+/// single sequential pass finds, with chunks down to a single byte or word:
+/// ScanStrings against a StringMatcher fed the whole buffer (strings crossing chunk
+/// boundaries, chunks starting in the middle of a string, heap and direct buffers larger
+/// than the copy size), StringMatcher.fork and dropMatchesBefore on their own (a matcher
+/// starting at most maxLength bytes before a split point, maybe mid string, must find
+/// the same matches ending after it), and ScanWordPairs against a plain loop over the
+/// words, with and without RELA addends replacing some of the words.
+/// usage: benchmark SectionScannerCheck [rounds]
+public class SectionScannerCheck {
+
+    public static void main(String args[]) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int chunkSize = SectionScanner.ChunkSize;
+        boolean parallel = SectionScanner.Parallel;
+        Random random = new Random(7);
+        int failures = 0;
+        try {
+            for (int round=0; round<rounds; ++round) {
+                failures += CheckStrings(random, round);
+                failures += CheckFork(random, round);
+                failures += CheckWordPairs(random, round);
+            }
+        } finally {
+            SectionScanner.ChunkSize = chunkSize;
+            SectionScanner.Parallel = parallel;
+        }
+        System.out.println(String.format("%d rounds, %d failures", rounds, failures));
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    /// strings of a small alphabet, so they are often found, as prefixes and suffixes of
+    /// other strings (not exact matches) and across chunk boundaries.
+    static int CheckStrings(Random random, int round) {
+        String[] strs = new String[1+random.nextInt(4)];
+        for (int ii=0; ii<strs.length; ++ii) {
+            StringBuilder str = new StringBuilder();
+            for (int len=1+random.nextInt(4); len>0; --len)
+                str.append((char)('a'+random.nextInt(3)));
+            strs[ii] = str.toString();
+        }
+        // mostly small sections with tiny chunks, some larger than the copy size of direct buffers:
+        byte[] data = new byte[random.nextInt(4) == 0 ? random.nextInt(40000) : random.nextInt(3000)];
+        for (int ii=0; ii<data.length; ++ii)
+            data[ii] = (byte)(random.nextInt(5) == 0 ? 0 : 'a'+random.nextInt(3));
+        long ofs = random.nextInt(1000);
+
+        StringMatcher expected = new StringMatcher(strs);
+        expected.feed(data, 0, data.length, ofs);
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (random.nextBoolean()) {
+            buf = ByteBuffer.allocateDirect(data.length);
+            buf.put(data);
+            buf.clear();
+        }
+        SectionScanner.ChunkSize = random.nextInt(4) == 0 ? 1 : 1+random.nextInt(data.length < 3000 ? 50 : 5000);
+        SectionScanner.Parallel = random.nextInt(4) != 0;
+        StringMatcher matcher = new StringMatcher(strs);
+        SectionScanner.ScanStrings(buf, ofs, matcher);
+
+        for (int ii=0; ii<strs.length; ++ii) {
+            List<StringMatcher.Match> want = expected.matches(ii);
+            List<StringMatcher.Match> got = matcher.matches(ii);
+            boolean same = want.size() == got.size();
+            for (int jj=0; same && jj<want.size(); ++jj)
+                same = want.get(jj).ofs_ == got.get(jj).ofs_ && want.get(jj).exact_ == got.get(jj).exact_;
+            if (!same) {
+                System.out.println(String.format("ScanStrings round %d: \"%s\" has %d matches instead of %d or"
+                                                 +" other ones (%d bytes, %s buffer, chunks of %d, %s)",
+                                                 round, strs[ii], got.size(), want.size(), data.length,
+                                                 buf.isDirect() ? "direct" : "heap", SectionScanner.ChunkSize,
+                                                 SectionScanner.Parallel ? "parallel" : "sequential"));
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /// feeds a forked matcher the data from shortly before a split point on, and compares
+    /// the matches ending after the split point with those of a matcher fed all the data.
+    static int CheckFork(Random random, int round) {
+        String[] strs = new String[1+random.nextInt(4)];
+        for (int ii=0; ii<strs.length; ++ii) {
+            StringBuilder str = new StringBuilder();
+            for (int len=1+random.nextInt(5); len>0; --len)
+                str.append((char)('a'+random.nextInt(2)));
+            strs[ii] = str.toString();
+        }
+        byte[] data = new byte[1+random.nextInt(300)];
+        for (int ii=0; ii<data.length; ++ii)
+            data[ii] = (byte)(random.nextInt(4) == 0 ? 0 : 'a'+random.nextInt(2));
+        long ofs = random.nextInt(100);
+
+        StringMatcher expected = new StringMatcher(strs);
+        expected.feed(data, 0, data.length, ofs);
+        int at = random.nextInt(data.length);
+        int from = Math.max(0, at-expected.maxLength()-random.nextInt(3));
+        boolean midString = from > 0 && data[from-1] != 0;
+        StringMatcher part = expected.fork(midString);
+        part.feed(data, from, data.length-from, ofs+from);
+        part.dropMatchesBefore(ofs+at);
+        expected.dropMatchesBefore(ofs+at);
+
+        for (int ii=0; ii<strs.length; ++ii) {
+            List<StringMatcher.Match> want = expected.matches(ii);
+            List<StringMatcher.Match> got = part.matches(ii);
+            boolean same = want.size() == got.size();
+            for (int jj=0; same && jj<want.size(); ++jj)
+                same = want.get(jj).ofs_ == got.get(jj).ofs_ && want.get(jj).exact_ == got.get(jj).exact_;
+            if (!same) {
+                System.out.println(String.format("fork round %d: \"%s\" has %d matches instead of %d or other"
+                                                 +" ones (split at %d, fed from %d%s)", round, strs[ii],
+                                                 got.size(), want.size(), at, from, midString ? " mid string" : ""));
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /// pairs of words of a few values, so the matcher matches often, some of them
+    /// replaced by the addends of relocations.
+    static int CheckWordPairs(Random random, int round) {
+        final int wordSize = random.nextBoolean() ? 4 : 8;
+        int words = random.nextInt(2000);
+        ByteBuffer data = ByteBuffer.allocate(words*wordSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (int ii=0; ii<words; ++ii) {
+            if (wordSize == 8)
+                data.putLong(ii*8, random.nextInt(6));
+            else
+                data.putInt(ii*4, random.nextInt(6));
+        }
+        long dataAddr = 0x10000 + 16*random.nextInt(100);
+        long base = random.nextBoolean() ? 0 : 0x40000000L;
+
+        RelocationIndex relocs = null;
+        if (random.nextBoolean()) {
+            boolean rela = random.nextInt(4) != 0;
+            relocs = new RelocationIndex(rela, 16);
+            for (int ii=0; ii<words; ++ii) {
+                if (random.nextInt(3) == 0)
+                    relocs.add(dataAddr+(long)ii*wordSize, random.nextInt(6)-base, 0);
+            }
+        }
+
+        SectionScanner.PairMatcher matcher = new SectionScanner.PairMatcher() {
+                public int match(long first, long second) {
+                    return (first*7+second) % 4 == 0 ? (int)((first+second) % 3) : -1;
+                }
+            };
+
+        // the sequential reference:
+        long[] values = new long[words];
+        for (int ii=0; ii<words; ++ii) {
+            values[ii] = wordSize == 8 ? data.getLong(ii*8) : data.getInt(ii*4) & 0xFFFFFFFFL;
+            int reloc = relocs != null && relocs.rela() ? relocs.find(dataAddr+(long)ii*wordSize) : -1;
+            if (reloc >= 0)
+                values[ii] = relocs.addend(reloc)+base;
+        }
+        List<Long> expected = new ArrayList<Long>();
+        for (int ii=1; ii<words; ++ii) {
+            int match = matcher.match(values[ii-1], values[ii]);
+            if (match >= 0) {
+                expected.add(Long.valueOf(ii-1));
+                expected.add(Long.valueOf(match));
+            }
+        }
+
+        SectionScanner.ChunkSize = random.nextInt(4) == 0 ? wordSize : 1+random.nextInt(wordSize*40);
+        SectionScanner.Parallel = random.nextInt(4) != 0;
+        long[] found = SectionScanner.ScanWordPairs(data, wordSize, dataAddr, relocs, base, matcher);
+
+        boolean same = found.length == expected.size();
+        for (int ii=0; same && ii<found.length; ++ii)
+            same = found[ii] == expected.get(ii).longValue();
+        if (!same) {
+            System.out.println(String.format("ScanWordPairs round %d: %d pairs instead of %d"
+                                             +" (%d words of %d bytes, %s, chunks of %d, %s)",
+                                             round, found.length/2, expected.size()/2, words, wordSize,
+                                             relocs == null ? "no relocations" : relocs.rela() ? "RELA" : "REL",
+                                             SectionScanner.ChunkSize,
+                                             SectionScanner.Parallel ? "parallel" : "sequential"));
+            return 1;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/// Checks that the statistics a client gets for a command sent with --stats are only those
+/// of its own command: a server runs two clients listing the JNI functions of a different
+/// number of synthetic libraries with --stats, started at the same time along with a third
+/// client without --stats, and each report must count one open per library of its own.
+/// usage: benchmark ServerStatsCheck [rounds]
+public class ServerStatsCheck {
+
+    private static final Pattern OpenCalls = Pattern.compile("^\\s*open\\s.*\\((\\d+) times\\)", Pattern.MULTILINE);
+
+    public static void main(String args[]) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        MetadataCache.Enabled = false; // every command does the work
+
+        List<String> files = new ArrayList<String>();
+        for (int ii=0; ii<7; ++ii)
+            files.add(SyntheticElf.GenerateTemp(2*1024*1024, 2*1024*1024, 64).getPath());
+        final List<String> one = files.subList(0, 1);
+        final List<String> four = files.subList(1, 5);
+        final List<String> other = files.subList(5, 7);
+
+        final File socket = File.createTempFile("andlibutils", ".sock");
+        socket.delete();
+        socket.deleteOnExit();
+        Thread server = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        new Server(socket).run(new PrintStream(new ByteArrayOutputStream()));
+                    } catch (IOException e) {
+                        System.out.println("Error running server: "+e.getMessage());
+                    }
+                }
+            });
+        server.start();
+        while (!Server.Ping(socket) && server.isAlive())
+            Thread.sleep(10);
+
+        int failures = 0;
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        try {
+            for (int round=0; round<rounds; ++round) {
+                final CountDownLatch start = new CountDownLatch(1);
+                Future<String> first = clients.submit(List(socket, one, true, start));
+                Future<String> second = clients.submit(List(socket, four, true, start));
+                Future<String> third = clients.submit(List(socket, other, false, start));
+                start.countDown();
+                failures += Check(round, "1 library", first.get(), one.size());
+                failures += Check(round, "4 libraries", second.get(), four.size());
+                third.get();
+            }
+        } finally {
+            clients.shutdown();
+            Server.Request(socket, new String[] { Server.ShutdownCmd },
+                           new PrintStream(new ByteArrayOutputStream()), System.out);
+            server.join();
+        }
+
+        System.out.println(String.format("%d rounds, %d failures", rounds, failures));
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    /// a client listing the files once start is counted down, returning its error stream
+    /// (where the statistics are).
+    static Callable<String> List(final File socket, final List<String> files, final boolean stats,
+                                 final CountDownLatch start) {
+        return new Callable<String>() {
+            public String call() throws Exception {
+                List<String> args = new ArrayList<String>();
+                if (stats)
+                    args.add("--stats");
+                args.add(JNIRenamer.CommandName);
+                args.add(JNIRenamer.ListCmd);
+                args.addAll(files);
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
+                start.await();
+                int status = Server.Request(socket, args.toArray(new String[args.size()]),
+                                            new PrintStream(new ByteArrayOutputStream()), new PrintStream(err));
+                if (status != 0)
+                    throw new IOException("list failed with status "+status+": "+err);
+                return err.toString();
+            }
+        };
+    }
+
+    /// returns the number of failures: 1 if the statistics do not count one open per file.
+    static int Check(int round, String label, String stats, int files) {
+        Matcher matcher = OpenCalls.matcher(stats);
+        int opens = matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+        if (opens == files)
+            return 0;
+        System.out.println(String.format("round %d: the statistics of %s count %d opens instead of %d",
+                                         round, label, opens, files));
+        return 1;
+    }
+
+}
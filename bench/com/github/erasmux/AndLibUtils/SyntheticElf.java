@@ -0,0 +1,237 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/// Generates little endian ELF files resembling an android JNI library for the benchmarks
+/// and checks: a .rodata full of random null terminated strings, and a .data of random
+/// words with JNINativeMethod {name, signature, fnPtr} entries pointing into .rodata.
+/// By default 32 bit ARM files whose words hold the pointers, or 64 bit x86_64 files
+/// whose pointers are the addends of RELA relative relocations in .rela.dyn (the words
+/// being 0), where every other fnPtr is filled by a symbol relocation instead.
+public class SyntheticElf {
+
+    public static final long RodataAddr = 0x10000;
+    private static final int HeaderSize = 52;
+    private static final int SectionHeaderSize = 40;
+    private static final int HeaderSize64 = 64;
+    private static final int SectionHeaderSize64 = 64;
+    private static final int RelaSize = 24;
+    private static final long R_X86_64_64 = 1;
+    private static final long R_X86_64_RELATIVE = 8;
+
+    public static String FunctionName = "native_drawText";
+    public static String Signature = "(I[CIIFFI)V";
+    public static String NewName = "drawText";
+
+    /// full signature of the JNI function planted in the file.
+    public static String FunctionSig() {
+        return FunctionName+Signature;
+    }
+
+    /// writes a file with about rodataSize bytes of strings and dataSize bytes of .data,
+    /// with natives JNINativeMethod entries (one of them for FunctionSig()).
+    public static File Generate(File file, int rodataSize, int dataSize, int natives) throws IOException {
+        return Generate(file, rodataSize, dataSize, natives, false);
+    }
+
+    /// like Generate, a 64 bit file with RELA relocations if rela is set.
+    public static File Generate(File file, int rodataSize, int dataSize, int natives, boolean rela) throws IOException {
+        Random random = new Random(rodataSize ^ dataSize);
+        int wordSize = rela ? 8 : 4;
+
+        // .rodata: the planted strings in the middle of random identifier like strings:
+        ByteArrayOutputStream rodata = new ByteArrayOutputStream();
+        rodata.write(0);
+        List<Integer> nameOfs = new ArrayList<Integer>();
+        List<Integer> sigOfs = new ArrayList<Integer>();
+        while (rodata.size() < rodataSize) {
+            if (nameOfs.size() < natives && rodata.size() >= rodataSize/2) {
+                String name = nameOfs.isEmpty() ? FunctionName : "native_func"+nameOfs.size();
+                String sig = nameOfs.isEmpty() ? Signature : "(I)V";
+                nameOfs.add(rodata.size());
+                WriteString(rodata, name);
+                sigOfs.add(rodata.size());
+                WriteString(rodata, sig);
+                continue;
+            }
+            StringBuilder str = new StringBuilder();
+            for (int len = 4+random.nextInt(28); len > 0; --len)
+                str.append((char)('a'+random.nextInt(26)));
+            WriteString(rodata, str.toString());
+        }
+        WriteString(rodata, NewName);
+        byte[] rodataBytes = rodata.toByteArray();
+
+        int rodataOfs = 0x1000;
+        int dataOfs = Align(rodataOfs + rodataBytes.length, 0x1000);
+        long dataAddr = RodataAddr + (dataOfs - rodataOfs) + 0x1000;
+
+        // .data: random words, some of them pointing into .rodata, with the entries in the middle:
+        ByteBuffer data = ByteBuffer.allocate(dataSize & ~(wordSize-1)).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer relocs = ByteBuffer.allocate(data.capacity()/wordSize*RelaSize).order(ByteOrder.LITTLE_ENDIAN);
+        int planted = 0;
+        while (data.remaining() >= wordSize) {
+            if (data.position() >= dataSize/2 && !nameOfs.isEmpty() && data.remaining() >= 3*wordSize) {
+                PutPointer(data, relocs, dataAddr, RodataAddr + nameOfs.remove(0), rela);
+                PutPointer(data, relocs, dataAddr, RodataAddr + sigOfs.remove(0), rela);
+                if (rela && planted % 2 == 1) {
+                    // a preemptible function, resolved by a symbol relocation:
+                    relocs.putLong(dataAddr + data.position()).putLong(((long) 1 << 32) | R_X86_64_64).putLong(0);
+                    data.putLong(0);
+                }
+                else
+                    PutPointer(data, relocs, dataAddr, 0x8000 + random.nextInt(0x10000) * 4, rela);
+                ++planted;
+                continue;
+            }
+            if (random.nextInt(4) == 0)
+                PutPointer(data, relocs, dataAddr, RodataAddr + random.nextInt(rodataBytes.length), rela);
+            else if (rela)
+                data.putLong(random.nextLong());
+            else
+                data.putInt(random.nextInt());
+        }
+        byte[] dataBytes = data.array();
+        byte[] relaBytes = Arrays.copyOf(relocs.array(), relocs.position());
+
+        byte[] shstrtab = (rela ? "\0.rodata\0.data\0.shstrtab\0.rela.dyn\0" : "\0.rodata\0.data\0.shstrtab\0")
+            .getBytes("ISO-8859-1");
+        int relaOfs = dataOfs + dataBytes.length;
+        int shstrtabOfs = relaOfs + relaBytes.length;
+        int sectHdrOfs = Align(shstrtabOfs + shstrtab.length, wordSize);
+        if (rela) {
+            ByteBuffer elf = ByteBuffer.allocate(sectHdrOfs + 5*SectionHeaderSize64).order(ByteOrder.LITTLE_ENDIAN);
+            elf.put(new byte[] { 0x7F, 'E', 'L', 'F', 2, 1, 1 });
+            elf.position(16);
+            elf.putShort((short) 3);  // ET_DYN
+            elf.putShort((short) 62); // EM_X86_64
+            elf.putInt(1);
+            elf.putLong(0);           // entry
+            elf.putLong(0);           // program headers
+            elf.putLong(sectHdrOfs);
+            elf.putInt(0);            // flags
+            elf.putShort((short) HeaderSize64);
+            elf.putShort((short) 56);
+            elf.putShort((short) 0);
+            elf.putShort((short) SectionHeaderSize64);
+            elf.putShort((short) 5);
+            elf.putShort((short) 3);  // .shstrtab index
+
+            Put(elf, rodataOfs, rodataBytes);
+            Put(elf, dataOfs, dataBytes);
+            Put(elf, relaOfs, relaBytes);
+            Put(elf, shstrtabOfs, shstrtab);
+
+            elf.position(sectHdrOfs + SectionHeaderSize64); // first section header is null
+            PutSection64(elf, 1, 1, RodataAddr, rodataOfs, rodataBytes.length, 0);
+            PutSection64(elf, 9, 1, dataAddr, dataOfs, dataBytes.length, 0);
+            PutSection64(elf, 15, 3, 0, shstrtabOfs, shstrtab.length, 0);
+            PutSection64(elf, 25, 4, 0, relaOfs, relaBytes.length, RelaSize);
+            return Write(file, elf.array());
+        }
+
+        ByteBuffer elf = ByteBuffer.allocate(sectHdrOfs + 4*SectionHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        elf.put(new byte[] { 0x7F, 'E', 'L', 'F', 1, 1, 1 });
+        elf.position(16);
+        elf.putShort((short) 3);  // ET_DYN
+        elf.putShort((short) 40); // EM_ARM
+        elf.putInt(1);
+        elf.putInt(0);            // entry
+        elf.putInt(0);            // program headers
+        elf.putInt(sectHdrOfs);
+        elf.putInt(0);            // flags
+        elf.putShort((short) HeaderSize);
+        elf.putShort((short) 32);
+        elf.putShort((short) 0);
+        elf.putShort((short) SectionHeaderSize);
+        elf.putShort((short) 4);
+        elf.putShort((short) 3);  // .shstrtab index
+
+        Put(elf, rodataOfs, rodataBytes);
+        Put(elf, dataOfs, dataBytes);
+        Put(elf, shstrtabOfs, shstrtab);
+
+        elf.position(sectHdrOfs + SectionHeaderSize); // first section header is null
+        PutSection(elf, 1, 1, RodataAddr, rodataOfs, rodataBytes.length);
+        PutSection(elf, 9, 1, dataAddr, dataOfs, dataBytes.length);
+        PutSection(elf, 15, 3, 0, shstrtabOfs, shstrtab.length);
+
+        return Write(file, elf.array());
+    }
+
+    private static File Write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /// writes a pointer to the next word of data: the word itself, or with rela a relative
+    /// relocation of it with the pointer as addend (and 0 in the word).
+    private static void PutPointer(ByteBuffer data, ByteBuffer relocs, long dataAddr, long ptr, boolean rela) {
+        if (!rela) {
+            data.putInt((int) ptr);
+            return;
+        }
+        relocs.putLong(dataAddr + data.position()).putLong(R_X86_64_RELATIVE).putLong(ptr);
+        data.putLong(0);
+    }
+
+    /// like Generate but to a temporary file which is deleted on exit.
+    public static File GenerateTemp(int rodataSize, int dataSize, int natives) throws IOException {
+        return GenerateTemp(rodataSize, dataSize, natives, false);
+    }
+
+    public static File GenerateTemp(int rodataSize, int dataSize, int natives, boolean rela) throws IOException {
+        File file = File.createTempFile("synthetic", ".so");
+        file.deleteOnExit();
+        return Generate(file, rodataSize, dataSize, natives, rela);
+    }
+
+    private static void WriteString(ByteArrayOutputStream out, String str) throws IOException {
+        out.write(str.getBytes("ISO-8859-1"));
+        out.write(0);
+    }
+
+    private static void Put(ByteBuffer buf, int ofs, byte[] bytes) {
+        buf.position(ofs);
+        buf.put(bytes);
+    }
+
+    private static void PutSection(ByteBuffer buf, int name, int type, long addr, int ofs, int size) {
+        buf.putInt(name);
+        buf.putInt(type);
+        buf.putInt(type==1 ? 2 : 0); // flags
+        buf.putInt((int) addr);
+        buf.putInt(ofs);
+        buf.putInt(size);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(1);
+        buf.putInt(0);
+    }
+
+    private static void PutSection64(ByteBuffer buf, int name, int type, long addr, int ofs, int size,
+                                     int entrySize) {
+        buf.putInt(name);
+        buf.putInt(type);
+        buf.putLong(type==1 ? 2 : 0); // flags
+        buf.putLong(addr);
+        buf.putLong(ofs);
+        buf.putLong(size);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putLong(8);
+        buf.putLong(entrySize);
+    }
+
+    private static int Align(int v, int alignment) {
+        return (v + alignment-1) & ~(alignment-1);
+    }
+
+}
@@ -1,20 +1,38 @@
-
 package com.github.erasmux.AndLibUtils;
 
 import java.io.*;
+import java.nio.*;
 
-/// Wrapper for RandomAccessFile to compensate for its slow reading performance if reading
-/// the bytes one by one. Notice this only buffers the input, writting is still one byte
-/// at a time. Interface might also be lacking, as I only added the functions I needed.
-public class BufferedRandomAccessFile {
+/// Wrapper for RandomAccessFile to compensate for its slow performance if reading or
+/// writing the bytes one by one. Both reads and writes go through the same buffer:
+/// writes only mark the modified range of the buffer as dirty, and the dirty range is
+/// written back in a single call when the buffer is flushed (on close, when the buffer
+/// has to be refilled or explicitly via flush()). Interface might also be lacking,
+/// as I only added the functions I needed.
+/// Seeking and skipping only move the position, so data still in the buffer is reused
+/// when the position comes back into it. How much is read on each refill adapts to the
+/// access pattern: it doubles (up to MaxReadAhead) while refills continue where the previous
+/// buffer ended and halves (down to MinReadAhead) when they jump, unless the reader hinted
+/// the pattern with setAccessPattern.
+/// The system calls made are counted in Stats (when enabled).
+public class BufferedRandomAccessFile implements RandomAccessData {
 
     private static final int DefaultBufferSize = 1024;
+    public static int MinReadAhead = 256;
+    public static int MaxReadAhead = 64*1024;
 
     private RandomAccessFile raf_;
+    private long rafPos_ = 0; // actual position of raf_
     private long pos_ = 0;
+    private long bufStart_ = 0; // file offset of buf_[0]
     private int buffered_ = 0;
-    private int bufInd_ = 0;
+    private int dirtyStart_ = 0;
+    private int dirtyEnd_ = 0; // dirty range is [dirtyStart_,dirtyEnd_), empty if not dirty
     private byte[] buf_ = new byte[DefaultBufferSize];
+    private int readAhead_ = DefaultBufferSize; // bytes read on the next refill
+    private int minReadAhead_ = MinReadAhead;
+    private int maxReadAhead_ = MaxReadAhead;
+    private int pattern_ = AccessNormal;
 
     public BufferedRandomAccessFile(File file, String mode) throws FileNotFoundException {
         raf_ = new RandomAccessFile(file, mode);
@@ -24,52 +42,164 @@ public class BufferedRandomAccessFile {
         raf_ = new RandomAccessFile(file, mode);
     }
 
-    public void setBufferSize(int newBufSize) {
+    /// uses a fixed buffer size instead of adapting the read ahead.
+    public void setBufferSize(int newBufSize) throws IOException {
+        flush();
+        dropBuffer();
         buf_ = new byte[newBufSize];
+        readAhead_ = minReadAhead_ = maxReadAhead_ = newBufSize;
+    }
+
+    public void setAccessPattern(int pattern) {
+        pattern_ = pattern;
+        if (pattern == AccessSequential)
+            readAhead_ = maxReadAhead_;
+        else if (pattern == AccessRandom)
+            readAhead_ = minReadAhead_;
     }
 
     public byte readByte() throws IOException {
-        if (bufInd_ >= buffered_) {
-            buffered_ = raf_.read(buf_);
-            bufInd_ = 0;
+        int ind = bufferIndex(pos_);
+        if (ind < 0 || ind >= buffered_) {
+            fillBuffer();
             if (buffered_ <= 0)
                 throw new EOFException();
+            ind = 0;
         }
         pos_++;
-        return buf_[bufInd_++];
+        return buf_[ind];
     }
 
     public int readUnsignedByte() throws IOException {
-        byte signed = readByte();
-        return signed < 0 ? 0x100 + signed : signed;
+        return readByte() & 0xFF;
     }
 
     public int readUnsignedShort() throws IOException {
+        int ind = bufferIndex(pos_);
+        if (ind >= 0 && ind+2 <= buffered_) {
+            pos_ += 2;
+            return (buf_[ind] & 0xFF) |
+                ((buf_[ind+1] & 0xFF) << 8);
+        }
         return readUnsignedByte() |
             (readUnsignedByte() << 8);
     }
 
     public long readUnsignedInt() throws IOException {
+        int ind = bufferIndex(pos_);
+        if (ind >= 0 && ind+4 <= buffered_) {
+            pos_ += 4;
+            return (buf_[ind] & 0xFF) |
+                ((buf_[ind+1] & 0xFF) << 8) |
+                ((buf_[ind+2] & 0xFF) << 16) |
+                ((long)(buf_[ind+3] & 0xFF) << 24);
+        }
         return readUnsignedByte() |
             (readUnsignedByte() << 8) |
             (readUnsignedByte() << 16) |
-            ((long)readUnsignedByte() << 24);        
+            ((long)readUnsignedByte() << 24);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int ind = bufferIndex(pos_);
+            if (ind >= 0 && ind < buffered_) {
+                int n = Math.min(len, buffered_-ind);
+                System.arraycopy(buf_, ind, b, off, n);
+                pos_ += n;
+                off += n;
+                len -= n;
+            }
+            else if (len >= buf_.length) {
+                // large reads go directly to the file (after writing back our changes):
+                flush();
+                dropBuffer();
+                seekRaf(pos_);
+                rafPos_ = -1; // unknown if the read fails
+                raf_.readFully(b, off, len);
+                Stats.Count(Stats.Syscalls, 1);
+                Stats.Count(Stats.BytesRead, len);
+                rafPos_ = pos_+len;
+                pos_ += len;
+                len = 0;
+            }
+            else {
+                fillBuffer();
+                if (buffered_ <= 0)
+                    throw new EOFException();
+            }
+        }
+    }
+
+    public void readFully(ByteBuffer dst) throws IOException {
+        if (dst.hasArray()) {
+            readFully(dst.array(), dst.arrayOffset()+dst.position(), dst.remaining());
+            dst.position(dst.limit());
+            return;
+        }
+        while (dst.hasRemaining()) {
+            int ind = bufferIndex(pos_);
+            if (ind < 0 || ind >= buffered_) {
+                fillBuffer();
+                if (buffered_ <= 0)
+                    throw new EOFException();
+                ind = 0;
+            }
+            int n = Math.min(dst.remaining(), buffered_-ind);
+            dst.put(buf_, ind, n);
+            pos_ += n;
+        }
+    }
+
+    /// decodes the values straight out of the buffer, only values straddling the end of
+    /// the buffer go through readUnsignedInt.
+    public void readUnsignedInts(int[] dst, int off, int len) throws IOException {
+        int end = off+len;
+        while (off < end) {
+            int ind = bufferIndex(pos_);
+            int n = ind >= 0 && ind < buffered_ ? Math.min(end-off, (buffered_-ind) >> 2) : 0;
+            if (n == 0) {
+                dst[off++] = (int) readUnsignedInt();
+                continue;
+            }
+            byte[] buf = buf_;
+            for (int last=off+n; off<last; ++off, ind+=4)
+                dst[off] = (buf[ind] & 0xFF) |
+                    ((buf[ind+1] & 0xFF) << 8) |
+                    ((buf[ind+2] & 0xFF) << 16) |
+                    (buf[ind+3] << 24);
+            pos_ += 4L*n;
+        }
+    }
+
+    public ByteBuffer slice(long ofs, int len) throws IOException {
+        byte[] data = new byte[len];
+        long pos = pos_;
+        pos_ = ofs;
+        try {
+            readFully(data, 0, len);
+        } finally {
+            pos_ = pos;
+        }
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
     }
 
     public void writeByte(byte b) throws IOException {
-        if (bufInd_ < buffered_) {
-            raf_.seek(pos_);
-            buffered_ = 0;
-            bufInd_ = 0;
+        int ind = bufferIndex(pos_);
+        // we can write into the buffer anywhere in its valid range or right after it:
+        if (ind < 0 || ind > buffered_ || ind >= buf_.length) {
+            fillBuffer();
+            ind = 0;
         }
-        raf_.write(b);
+        buf_[ind] = b;
+        if (ind >= buffered_)
+            buffered_ = ind+1;
+        markDirty(ind, ind+1);
         pos_++;
     }
 
     public void writeUnsignedByte(int v) throws IOException {
-        v = v & 0xFF;
-        byte b = v < 0x80 ? (byte) v : (byte)( v - 0x100 );
-        writeByte(b);
+        writeByte((byte) v);
     }
 
     public void writeUnsignedShort(int v) throws IOException {
@@ -78,37 +208,129 @@ public class BufferedRandomAccessFile {
     }
 
     public void writeUnsignedInt(long v) throws IOException {
+        int ind = bufferIndex(pos_);
+        if (ind >= 0 && ind+4 <= buffered_) {
+            buf_[ind]   = (byte)  v;
+            buf_[ind+1] = (byte) (v >> 8);
+            buf_[ind+2] = (byte) (v >> 16);
+            buf_[ind+3] = (byte) (v >> 24);
+            markDirty(ind, ind+4);
+            pos_ += 4;
+            return;
+        }
         writeUnsignedByte((int)  v);
         writeUnsignedByte((int) (v >> 8));
         writeUnsignedByte((int) (v >> 16));
         writeUnsignedByte((int) (v >> 24));
     }
 
+    /// only moves the position, the buffer is kept until a read or write outside it.
     public void skipBytes(int bytes) throws IOException {
-        bufInd_ += bytes;
-        if (bufInd_ > buffered_) {
-            raf_.skipBytes(bufInd_ - buffered_);
-            buffered_ = 0;
-            bufInd_ = 0;
-        }
         pos_ += bytes;
     }
 
+    /// only moves the position, the buffer is kept until a read or write outside it.
     public void seek(long ofs) throws IOException {
-        if (ofs != pos_) {
-            raf_.seek(ofs);
-            pos_ = ofs;
-            buffered_ = 0;
-            bufInd_ = 0;
-        }
+        pos_ = ofs;
     }
 
     public long getFilePointer() {
         return pos_;
     }
 
+    public long length() throws IOException {
+        long length = raf_.length();
+        Stats.Count(Stats.Syscalls, 1);
+        // pending writes might extend the file:
+        if (dirtyEnd_ > dirtyStart_)
+            length = Math.max(length, bufStart_+dirtyEnd_);
+        return length;
+    }
+
+    /// writes any pending modifications to the file.
+    public void flush() throws IOException {
+        if (dirtyEnd_ > dirtyStart_) {
+            seekRaf(bufStart_+dirtyStart_);
+            raf_.write(buf_, dirtyStart_, dirtyEnd_-dirtyStart_);
+            rafPos_ += dirtyEnd_-dirtyStart_;
+            Stats.Count(Stats.Syscalls, 1);
+            Stats.Count(Stats.BytesWritten, dirtyEnd_-dirtyStart_);
+            dirtyStart_ = dirtyEnd_ = 0;
+        }
+    }
+
     public void close() throws IOException {
-        raf_.close();
+        try {
+            flush();
+        } finally {
+            raf_.close();
+        }
+    }
+
+    /// returns index of ofs in the buffer (might be out of the buffer's range).
+    private int bufferIndex(long ofs) {
+        long ind = ofs - bufStart_;
+        return ind < 0 || ind > buf_.length ? -1 : (int) ind;
+    }
+
+    private void markDirty(int start, int end) {
+        if (dirtyEnd_ <= dirtyStart_) {
+            dirtyStart_ = start;
+            dirtyEnd_ = end;
+        }
+        else {
+            // merge with the existing dirty range, the bytes in between are
+            // valid buffered data so rewriting them is harmless:
+            dirtyStart_ = Math.min(dirtyStart_, start);
+            dirtyEnd_ = Math.max(dirtyEnd_, end);
+        }
+    }
+
+    /// flushes and refills the buffer starting at the current position.
+    /// at end of file buffered_ is left 0.
+    private void fillBuffer() throws IOException {
+        adaptReadAhead();
+        flush();
+        dropBuffer();
+        bufStart_ = pos_;
+        seekRaf(pos_);
+        if (buf_.length < readAhead_)
+            buf_ = new byte[readAhead_];
+        int read = raf_.read(buf_, 0, readAhead_);
+        Stats.Count(Stats.Syscalls, 1);
+        Stats.Count(Stats.Refills, 1);
+        if (read > 0) {
+            buffered_ = read;
+            rafPos_ += read;
+            Stats.Count(Stats.BytesRead, read);
+        }
+    }
+
+    /// grows the read ahead if the refill continues the previous buffer, shrinks it if it
+    /// jumps elsewhere (leaving buffered data which was never used).
+    private void adaptReadAhead() {
+        boolean sequential = pos_ == bufStart_+buffered_;
+        if (!sequential && buffered_ > 0)
+            Stats.Count(Stats.Discards, 1);
+        if (pattern_ != AccessNormal || buffered_ == 0)
+            return;
+        if (sequential)
+            readAhead_ = Math.min(readAhead_*2, maxReadAhead_);
+        else
+            readAhead_ = Math.max(readAhead_/2, minReadAhead_);
+    }
+
+    private void dropBuffer() {
+        bufStart_ = pos_;
+        buffered_ = 0;
+    }
+
+    private void seekRaf(long ofs) throws IOException {
+        if (ofs != rafPos_) {
+            raf_.seek(ofs);
+            rafPos_ = ofs;
+            Stats.Count(Stats.Syscalls, 1);
+        }
     }
 
 }
@@ -1,43 +1,109 @@
-
 package com.github.erasmux.AndLibUtils;
 
+import java.io.*;
+import java.util.*;
+
 public class CommandLine {
 
     static String Command = "AndLibUtils";
-    
+
     static String Version = "1.1";
 
     public static void main(String args[]) {
+        int status = Execute(args, System.out, System.err);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    /// runs the command given by args writing its output to stdout and stderr,
+    /// returns its exit status.
+    public static int Execute(String args[], PrintStream stdout, PrintStream stderr) {
         int status = -1;
 
+        // global flags:
+        boolean cache = MetadataCache.Enabled;
+        boolean json = ResultWriter.Json;
+        boolean stats = false;
+        List<String> rest = new ArrayList<String>();
+        for (int ii=0; ii<args.length; ++ii) {
+            if (args[ii].equals("--no-cache"))
+                cache = false;
+            else if (args[ii].equals("--stats"))
+                stats = true;
+            else if (args[ii].equals("--format") && (ii+1)<args.length) {
+                if (args[++ii].equals(ResultWriter.FormatNdjson))
+                    json = true;
+                else if (args[ii].equals(ResultWriter.FormatText))
+                    json = false;
+                else {
+                    stderr.println("Error: unknown output format: "+args[ii]);
+                    return -1;
+                }
+            }
+            else
+                rest.add(args[ii]);
+        }
+        args = rest.toArray(new String[rest.size()]);
+        if (cache != MetadataCache.Enabled || json != ResultWriter.Json) {
+            // the flags are global, so they can not change for a single command of the server:
+            if (Server.Serving) {
+                stderr.println("Error: --no-cache and --format must be given when starting the server.");
+                return -1;
+            }
+            MetadataCache.Enabled = cache;
+            ResultWriter.Json = json;
+        }
+
+        // the server always keeps statistics (for JMX), so there only the difference is reported
+        // (the server runs commands sent with --stats alone, so it is the command's own):
+        long[] statsBefore = null;
+        if (stats) {
+            Stats.Enabled = true;
+            statsBefore = Stats.Snapshot();
+        }
+
         if (args.length < 1)
-            usage();
+            usage(stdout);
         else if (args[0].equals("help")) {
-            if (!Prelinked.Help(args) &&
-                !JNIRenamer.Help(args))
-                usage();
+            if (!Prelinked.Help(args, stdout) &&
+                !JNIRenamer.Help(args, stdout) &&
+                !SymbolTable.Help(args, stdout) &&
+                !Server.Help(args, stdout))
+                usage(stdout);
         }
         else if (args[0].equals("version")) {
-            System.out.println(Command + " v"+Version);
+            stdout.println(Command + " v"+Version);
         }
         else if (Prelinked.CheckArgs(args))
-            status = Prelinked.Run(args);
+            status = Prelinked.Run(args, stdout, stderr);
         else if (JNIRenamer.CheckArgs(args))
-            status = JNIRenamer.Run(args);
+            status = JNIRenamer.Run(args, stdout, stderr);
+        else if (SymbolTable.CheckArgs(args))
+            status = SymbolTable.Run(args, stdout, stderr);
+        else if (Server.CheckArgs(args) && !Server.Serving)
+            status = Server.Run(args, stdout, stderr);
         else
-            usage();
+            usage(stdout);
 
-        if (status != 0)
-            System.exit(status);
+        // a client passes --stats on and gets the server's statistics with the output:
+        if (stats && (args.length == 0 || !args[0].equals(Server.ClientCmd)))
+            Stats.Print(stderr, statsBefore);
+        return status;
     }
 
-    static void usage() {
-        System.out.println("usage: "+Command+" <option> [<flags>]");
-        System.out.println();
-        System.out.println("Availble options are:");
-        System.out.println("   "+JNIRenamer.Usage());
-        System.out.println("   "+Prelinked.Usage());
-        System.out.println("   version");
-        System.out.println("   help <option>");
+    static void usage(PrintStream stdout) {
+        stdout.println("usage: "+Command+" [--no-cache] [--format text|ndjson] [--stats] <option> [<flags>]");
+        stdout.println();
+        stdout.println("Availble options are:");
+        stdout.println("   "+JNIRenamer.Usage());
+        stdout.println("   "+Prelinked.Usage());
+        stdout.println("   "+SymbolTable.Usage());
+        stdout.println("   "+Server.Usage());
+        stdout.println("   version");
+        stdout.println("   help <option>");
+        stdout.println();
+        stdout.println(" --no-cache : do not use the cache of parsed library metadata (~/.cache/andlibutils)");
+        stdout.println(" --format ndjson : write the results as one JSON object per line, as they are found");
+        stdout.println(" --stats    : print I/O counters and the time spent in each phase to stderr");
     }
 }
@@ -0,0 +1,142 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.*;
+import java.util.*;
+
+/// Groups the files of a batch by their content, so trees holding many byte-identical
+/// copies of the same libraries (such as the /system/lib of several device images) are
+/// processed once per distinct library and the results are reused for the copies.
+/// Only files of the same size can be identical, so only those are read: each is hashed
+/// (SHA-1 of the whole file) in parallel, and a file whose hash was already seen is a
+/// duplicate of the first file (in the order of the batch) with that hash.
+/// Files which can not be read are never duplicates, processing them reports the error.
+/// A duplicate can also be the very same file as an earlier one, listed twice or through a
+/// hard link, which must then not be changed again.
+public class DuplicateFiles {
+
+    private List<File> unique_ = new ArrayList<File>();
+    private List<File> duplicates_ = new ArrayList<File>();
+    private Map<File,File> originals_ = new HashMap<File,File>();
+    private Set<File> links_ = new HashSet<File>();
+
+    private DuplicateFiles() {
+    }
+
+    /// groups the files by content, hashing up to jobs files in parallel.
+    public static DuplicateFiles Find(List<File> files, int jobs) {
+        long start = Stats.Start();
+        Map<Long,Integer> sizes = new HashMap<Long,Integer>();
+        long[] lengths = new long[files.size()];
+        for (int ii=0; ii<files.size(); ++ii) {
+            lengths[ii] = files.get(ii).length();
+            Integer count = sizes.get(lengths[ii]);
+            sizes.put(lengths[ii], count==null ? 1 : count+1);
+        }
+        List<File> candidates = new ArrayList<File>();
+        for (int ii=0; ii<files.size(); ++ii) {
+            if (sizes.get(lengths[ii]) > 1)
+                candidates.add(files.get(ii));
+        }
+
+        final Map<File,String> hashes = new HashMap<File,String>();
+        FileBatch.Run(candidates, jobs, new FileBatch.Task<String>() {
+                public String run(File file) throws IOException {
+                    return Hash(file);
+                }
+            }, new FileBatch.Handler<String>() {
+                public void done(File file, String hash, Exception error) {
+                    if (error == null)
+                        hashes.put(file, hash);
+                }
+            });
+
+        DuplicateFiles dups = new DuplicateFiles();
+        Map<String,File> firsts = new HashMap<String,File>();
+        Set<Object> keys = new HashSet<Object>();
+        for (Iterator<File> iter = files.iterator(); iter.hasNext();) {
+            File file = iter.next();
+            String hash = hashes.get(file);
+            File original = hash==null ? null : firsts.get(hash);
+            if (original != null) {
+                dups.duplicates_.add(file);
+                dups.originals_.put(file, original);
+                if (!keys.add(FileKey(file)))
+                    dups.links_.add(file);
+            }
+            else {
+                if (hash != null) {
+                    firsts.put(hash, file);
+                    keys.add(FileKey(file));
+                }
+                dups.unique_.add(file);
+            }
+        }
+        Stats.Stop(Stats.Dedup, start);
+        return dups;
+    }
+
+    /// the files which are not duplicates of an earlier file, in order.
+    public List<File> unique() {
+        return unique_;
+    }
+
+    /// the files which are duplicates of an earlier file, in order.
+    public List<File> duplicates() {
+        return duplicates_;
+    }
+
+    /// the first file with the same content as the given duplicate, null if it is not a duplicate.
+    public File originalOf(File file) {
+        return originals_.get(file);
+    }
+
+    /// true if the duplicate is the same file as an earlier file of the batch (the same
+    /// path or a hard link), so changes to that file already changed it.
+    public boolean isLink(File file) {
+        return links_.contains(file);
+    }
+
+    /// identifies the file itself rather than its path: its inode where the file system
+    /// has them, its canonical path otherwise.
+    private static Object FileKey(File file) {
+        try {
+            Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            return key != null ? key : file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /// hex SHA-1 of the whole content of the file.
+    public static String Hash(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available: "+e.getMessage());
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect(64*1024);
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        } finally {
+            in.close();
+        }
+        byte[] digest = md.digest();
+        StringBuilder hex = new StringBuilder();
+        for (int ii=0; ii<digest.length; ++ii)
+            hex.append(String.format("%02x", digest[ii] & 0xFF));
+        return hex.toString();
+    }
+
+}
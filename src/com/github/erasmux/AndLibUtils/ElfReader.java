@@ -2,17 +2,26 @@
 package com.github.erasmux.AndLibUtils;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
+import java.util.zip.*;
 
 public class ElfReader {
 
-    private BufferedRandomAccessFile raf_;
+    /// files at least this large are memory mapped instead of read through a buffer.
+    public static final long MappedThreshold = 1024*1024;
+
+    /// bytes read at once by bulk scans of a section.
+    public static final int ScanChunkSize = 64*1024;
+
+    private RandomAccessData raf_;
     private boolean valid_ = false;
     private int elfClass_ = 0;
     private int elfDataEncoding_ = 0;
     private int elfType_ = 0;
     private int elfMachine_ = 0;
     private long elfVersion_ = 0;
+    private int elfHeaderSize_ = 0;
     private long progHdrOfs_ = 0;
     private int progHdrEntrySize_ = 0;
     private int progHdrEntries_ = 0;
@@ -21,6 +30,109 @@ public class ElfReader {
     private int sectHdrEntries_ = 0;
     private int sectHdrStringTableIndex_ = 0;
     private boolean lastMatchExact_ = false;
+    private Decoder decoder_ = LittleEndian32;
+    private int[] scratch_ = new int[0]; // raw values for readWords
+
+    /// reads and writes the fields whose size or byte order depend on the ELF class and data
+    /// encoding. one implementation is picked by readElfHeader once, so the reads themselves
+    /// never have to check the class or encoding.
+    static private abstract class Decoder {
+        public abstract int wordSize();
+        public abstract ByteOrder order();
+        public abstract int readU16(RandomAccessData raf) throws IOException;
+        public abstract long readU32(RandomAccessData raf) throws IOException;
+        public abstract long readWord(RandomAccessData raf) throws IOException;
+        public abstract void readU32s(RandomAccessData raf, int[] dst, int off, int len) throws IOException;
+        public abstract void writeU16(RandomAccessData raf, int v) throws IOException;
+        public abstract void writeU32(RandomAccessData raf, long v) throws IOException;
+        public abstract void writeWord(RandomAccessData raf, long v) throws IOException;
+    }
+
+    static private class LittleEndian32Decoder extends Decoder {
+        public int wordSize() { return 4; }
+        public ByteOrder order() { return ByteOrder.LITTLE_ENDIAN; }
+        public int readU16(RandomAccessData raf) throws IOException {
+            return raf.readUnsignedShort();
+        }
+        public long readU32(RandomAccessData raf) throws IOException {
+            return raf.readUnsignedInt();
+        }
+        public long readWord(RandomAccessData raf) throws IOException {
+            return raf.readUnsignedInt();
+        }
+        public void readU32s(RandomAccessData raf, int[] dst, int off, int len) throws IOException {
+            raf.readUnsignedInts(dst, off, len);
+        }
+        public void writeU16(RandomAccessData raf, int v) throws IOException {
+            raf.writeUnsignedShort(v);
+        }
+        public void writeU32(RandomAccessData raf, long v) throws IOException {
+            raf.writeUnsignedInt(v);
+        }
+        public void writeWord(RandomAccessData raf, long v) throws IOException {
+            raf.writeUnsignedInt(v);
+        }
+    }
+
+    static private class BigEndian32Decoder extends Decoder {
+        public int wordSize() { return 4; }
+        public ByteOrder order() { return ByteOrder.BIG_ENDIAN; }
+        public int readU16(RandomAccessData raf) throws IOException {
+            return Integer.reverseBytes(raf.readUnsignedShort()) >>> 16;
+        }
+        public long readU32(RandomAccessData raf) throws IOException {
+            return Integer.reverseBytes((int) raf.readUnsignedInt()) & 0xFFFFFFFFL;
+        }
+        public long readWord(RandomAccessData raf) throws IOException {
+            return readU32(raf);
+        }
+        public void readU32s(RandomAccessData raf, int[] dst, int off, int len) throws IOException {
+            raf.readUnsignedInts(dst, off, len);
+            for (int ii=off; ii<off+len; ++ii)
+                dst[ii] = Integer.reverseBytes(dst[ii]);
+        }
+        public void writeU16(RandomAccessData raf, int v) throws IOException {
+            raf.writeUnsignedShort(Integer.reverseBytes(v) >>> 16);
+        }
+        public void writeU32(RandomAccessData raf, long v) throws IOException {
+            raf.writeUnsignedInt(Integer.reverseBytes((int) v) & 0xFFFFFFFFL);
+        }
+        public void writeWord(RandomAccessData raf, long v) throws IOException {
+            writeU32(raf, v);
+        }
+    }
+
+    static private class LittleEndian64Decoder extends LittleEndian32Decoder {
+        public int wordSize() { return 8; }
+        public long readWord(RandomAccessData raf) throws IOException {
+            return raf.readUnsignedInt() | (raf.readUnsignedInt() << 32);
+        }
+        public void writeWord(RandomAccessData raf, long v) throws IOException {
+            raf.writeUnsignedInt(v & 0xFFFFFFFFL);
+            raf.writeUnsignedInt(v >>> 32);
+        }
+    }
+
+    static private class BigEndian64Decoder extends BigEndian32Decoder {
+        public int wordSize() { return 8; }
+        public long readWord(RandomAccessData raf) throws IOException {
+            return (readU32(raf) << 32) | readU32(raf);
+        }
+        public void writeWord(RandomAccessData raf, long v) throws IOException {
+            writeU32(raf, v >>> 32);
+            writeU32(raf, v & 0xFFFFFFFFL);
+        }
+    }
+
+    private static final Decoder LittleEndian32 = new LittleEndian32Decoder();
+    private static final Decoder BigEndian32 = new BigEndian32Decoder();
+    private static final Decoder LittleEndian64 = new LittleEndian64Decoder();
+    private static final Decoder BigEndian64 = new BigEndian64Decoder();
+
+    public static final int ElfClass32 = 1;
+    public static final int ElfClass64 = 2;
+    public static final int ElfDataLittleEndian = 1;
+    public static final int ElfDataBigEndian = 2;
 
     static private class SectionHeader {
         public long nameIndex_;
@@ -32,30 +144,104 @@ public class ElfReader {
         public String name_;
     }
 
+    static private class ProgramHeader {
+        public long type_;
+        public long ofs_;
+        public long vaddr_;
+        public long fileSize_;
+        public long memSize_;
+        public long align_;
+    }
+
+    public static final long ProgTypeLoad = 1;
+    public static final long PageSize = 0x1000;
+
     private List<SectionHeader> sections_;
+    private Map<String,SectionHeader> sectionsByName_;
+    private SectionHeader[] sectionsByOfs_; // sections occupying file space, sorted by offset
     private SectionHeader currentSection_;
+    private List<ProgramHeader> programs_;
+    private RelocationIndex relocations_; // built by relocations
 
     public ElfReader(File file, String mode) throws IOException, FileNotFoundException {
         sections_ = new ArrayList<SectionHeader>();
+        sectionsByName_ = new HashMap<String,SectionHeader>();
+        sectionsByOfs_ = new SectionHeader[0];
         currentSection_ = null;
-        raf_ = new BufferedRandomAccessFile(file, mode);
-        readElfHeader();
+        raf_ = OpenFile(file, mode);
+        try {
+            readElfHeader();
+        } catch (IOException e) {
+            raf_.close();
+            throw e;
+        }
+    }
+
+    /// opens the given file with the backend best suited for its size: large files are
+    /// memory mapped, small files (or files too large to map) are read through a buffer.
+    static public RandomAccessData OpenFile(File file, String mode) throws IOException, FileNotFoundException {
+        long length = file.length();
+        if (length >= MappedThreshold && length <= Integer.MAX_VALUE)
+            return new MappedRandomAccessFile(file, mode);
+        return new BufferedRandomAccessFile(file, mode);
     }
 
     public boolean valid() {
         return valid_;
     }
 
+    public boolean is64Bit() {
+        return elfClass_ == ElfClass64;
+    }
+
+    /// size of addresses and offsets in the file: 4 for 32 bit ELFs and 8 for 64 bit ELFs.
+    public int wordSize() {
+        return decoder_.wordSize();
+    }
+
+    public ByteOrder byteOrder() {
+        return decoder_.order();
+    }
+
     public int readUByte() throws IOException {
         return raf_.readUnsignedByte();
     }
 
     public int readUShort() throws IOException {
-        return raf_.readUnsignedShort();
+        return decoder_.readU16(raf_);
     }
 
     public long readUInt() throws IOException {
-        return raf_.readUnsignedInt();
+        return decoder_.readU32(raf_);
+    }
+
+    /// reads an address or offset sized value (see wordSize).
+    public long readWord() throws IOException {
+        return decoder_.readWord(raf_);
+    }
+
+    /// reads len 32 bit values into dst starting at off, as their raw bits (mask with
+    /// 0xFFFFFFFFL for the unsigned value).
+    public void readUInts(int[] dst, int off, int len) throws IOException {
+        decoder_.readU32s(raf_, dst, off, len);
+    }
+
+    /// reads len address sized values (see wordSize) into dst starting at off.
+    public void readWords(long[] dst, int off, int len) throws IOException {
+        if (wordSize() == 4) {
+            if (scratch_.length < len)
+                scratch_ = new int[len];
+            readUInts(scratch_, 0, len);
+            for (int ii=0; ii<len; ++ii)
+                dst[off+ii] = scratch_[ii] & 0xFFFFFFFFL;
+            return;
+        }
+        if (scratch_.length < 2*len)
+            scratch_ = new int[2*len];
+        readUInts(scratch_, 0, 2*len);
+        int hi = byteOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1;
+        for (int ii=0; ii<len; ++ii)
+            dst[off+ii] = ((long) scratch_[2*ii+hi] << 32) | (scratch_[2*ii+1-hi] & 0xFFFFFFFFL);
     }
 
     public void writeUByte(int v) throws IOException {
@@ -63,11 +249,26 @@ public class ElfReader {
     }
 
     public void writeUShort(int v) throws IOException {
-        raf_.writeUnsignedShort(v);
+        decoder_.writeU16(raf_, v);
     }
 
     public void writeUInt(long v) throws IOException {
-        raf_.writeUnsignedInt(v);
+        decoder_.writeU32(raf_, v);
+    }
+
+    /// writes an address or offset sized value (see wordSize).
+    public void writeWord(long v) throws IOException {
+        decoder_.writeWord(raf_, v);
+    }
+
+    /// the given value as an address sized word (see wordSize) in the byte order of the file.
+    public byte[] encodeWord(long v) {
+        ByteBuffer buf = ByteBuffer.allocate(wordSize()).order(byteOrder());
+        if (wordSize() == 8)
+            buf.putLong(v);
+        else
+            buf.putInt((int) v);
+        return buf.array();
     }
 
     public String readString() throws IOException {
@@ -88,6 +289,15 @@ public class ElfReader {
             findCurrentSection(ofs);
     }
 
+    /// passes an access pattern hint (RandomAccessData.Access*) on to the file.
+    public void hintAccess(int pattern) {
+        raf_.setAccessPattern(pattern);
+    }
+
+    public long filePointer() {
+        return raf_.getFilePointer();
+    }
+
     /// like seek but offset given relative to current location
     public void reseek(long relativeOfs) throws IOException {
         seek(raf_.getFilePointer() + relativeOfs);
@@ -122,11 +332,44 @@ public class ElfReader {
         return sh==null ? -1 : sh.addr_;
     }
 
+    /// size of the given section in the file (0 for sections without data), -1 if there is
+    /// no such section.
+    public long sectionSize(String name) {
+        SectionHeader sh = findSection(name);
+        return sh==null ? -1 : sh.effSize_;
+    }
+
     public long sectionOfs2FileOfs(String name, long ofs) {
         SectionHeader sh = findSection(name);
         return sh==null ? -1 : sh.ofs_+ofs;
     }
 
+    /// reads the whole content of the given section into a buffer in the byte order of the file.
+    /// returns null if there is no such section.
+    public ByteBuffer readSectionData(String name) throws IOException {
+        SectionHeader sh = findSection(name);
+        if (sh == null)
+            return null;
+        if (sh.effSize_ > Integer.MAX_VALUE)
+            throw new IOException("Section too large: "+name);
+        byte[] data = new byte[(int) sh.effSize_];
+        seek(sh.ofs_);
+        raf_.readFully(data, 0, data.length);
+        return ByteBuffer.wrap(data).order(byteOrder());
+    }
+
+    /// the content of the given section in the byte order of the file, without copying it if
+    /// the file is memory mapped: the buffer is then a view of the file and must not be
+    /// written to. the file pointer is not moved. returns null if there is no such section.
+    public ByteBuffer sectionSlice(String name) throws IOException {
+        SectionHeader sh = findSection(name);
+        if (sh == null)
+            return null;
+        if (sh.effSize_ > Integer.MAX_VALUE)
+            throw new IOException("Section too large: "+name);
+        return raf_.slice(sh.ofs_, (int) sh.effSize_).order(byteOrder());
+    }
+
     /// searches the remain of the current section for a null terminated string
     /// which matches the given string.
     /// if it is found, its offset is returned and the file pointer is left right
@@ -171,21 +414,45 @@ public class ElfReader {
         return -1;
     }
 
+    /// searches the remain of the current section for all the strings of the given matcher
+    /// in a single pass. the matches are collected by the matcher (its previous matches
+    /// are cleared) and the section is finished.
+    public void seekStrings(StringMatcher matcher) throws IOException {
+        matcher.reset();
+        if (currentSection_ == null)
+            return;
+        long ofs = currentOffsetInSection();
+        long size = currentSection_.effSize_;
+        if (ofs < size) {
+            if (size-ofs > Integer.MAX_VALUE)
+                throw new IOException("Section too large: "+currentSection_.name_);
+            // large sections are scanned in concurrent chunks:
+            SectionScanner.ScanStrings(raf_.slice(currentSection_.ofs_+ofs, (int)(size-ofs)), ofs, matcher);
+            raf_.seek(currentSection_.ofs_+size);
+        }
+    }
+
     public boolean lastMatchWasExact() {
         return lastMatchExact_;
     }
 
     public void readSections() throws IOException {
-        seek(sectHdrOfs_);
+        long start = Stats.Start();
+        int wordSize = wordSize();
+        long tableSize = (long)sectHdrEntrySize_*sectHdrEntries_;
+        if (sectHdrEntries_ > 0 && (sectHdrEntrySize_ < 8+4*wordSize || tableSize > Integer.MAX_VALUE))
+            throw new IOException("Invalid section header table");
+        // the whole table is read at once and decoded from memory:
+        ByteBuffer table = raf_.slice(sectHdrOfs_, (int) tableSize).order(byteOrder());
         for(int ii=0; ii<sectHdrEntries_; ++ii) {
+            int ofs = ii*sectHdrEntrySize_;
             SectionHeader sh = new SectionHeader();
-            sh.nameIndex_ = readUInt();
-            sh.type_ = readUInt();
-            skip(4);
-            sh.addr_ = readUInt();
-            sh.ofs_ = readUInt();
-            sh.size_ = readUInt();
-            skip(sectHdrEntrySize_ - 6*4);
+            sh.nameIndex_ = table.getInt(ofs) & 0xFFFFFFFFL;
+            sh.type_ = table.getInt(ofs+4) & 0xFFFFFFFFL;
+            ofs += 8 + wordSize; // skip flags
+            sh.addr_ = GetWord(table, ofs, wordSize);
+            sh.ofs_ = GetWord(table, ofs+wordSize, wordSize);
+            sh.size_ = GetWord(table, ofs+2*wordSize, wordSize);
 
             sh.effSize_ = sh.type_==8 ? 0 : sh.size_; // if type==NOBITS effective size=0
             sh.name_ = ""; // just in case...
@@ -193,13 +460,197 @@ public class ElfReader {
         }
 
         if (sectHdrStringTableIndex_ < sections_.size()) {
-            long strTabOfs = sections_.get(sectHdrStringTableIndex_).ofs_;
-            for(int ii=0; ii < sections_.size(); ++ii) {
+            SectionHeader strTab = sections_.get(sectHdrStringTableIndex_);
+            long namesSize = Math.min(strTab.size_, raf_.length()-strTab.ofs_);
+            ByteBuffer names = strTab.ofs_ >= 0 && namesSize >= 0 && namesSize <= Integer.MAX_VALUE
+                ? raf_.slice(strTab.ofs_, (int) namesSize) : null;
+            for(int ii=0; names != null && ii < sections_.size(); ++ii) {
                 SectionHeader sh = sections_.get(ii);
-                seek(strTabOfs + sh.nameIndex_);
-                sh.name_ = readString();
+                sh.name_ = GetString(names, sh.nameIndex_);
+            }
+        }
+
+        indexSections();
+        Stats.Stop(Stats.ReadSections, start);
+    }
+
+    public static final long SectTypeRela = 4;
+    public static final long SectTypeRel = 9;
+
+    /// the relative relocations of the file, built with a single pass over its relocation
+    /// sections the first time it is needed. if the file has RELA sections only they are
+    /// indexed, the words relocated by REL relocations already hold their addend.
+    public RelocationIndex relocations() throws IOException {
+        if (relocations_ != null)
+            return relocations_;
+        long relative = RelocationIndex.RelativeType(elfMachine_);
+        boolean rela = false;
+        for (int ii=0; ii<sections_.size(); ++ii)
+            rela |= sections_.get(ii).type_ == SectTypeRela;
+        long type = rela ? SectTypeRela : SectTypeRel;
+        int wordSize = wordSize();
+        int entrySize = (rela ? 3 : 2)*wordSize;
+        long entries = 0;
+        for (int ii=0; ii<sections_.size(); ++ii)
+            if (sections_.get(ii).type_ == type)
+                entries += sections_.get(ii).effSize_/entrySize;
+
+        RelocationIndex index = new RelocationIndex(rela, (int) Math.min(entries, 1<<20));
+        for (int ii=0; relative >= 0 && ii<sections_.size(); ++ii) {
+            SectionHeader sh = sections_.get(ii);
+            if (sh.type_ != type || sh.effSize_ > Integer.MAX_VALUE)
+                continue;
+            ByteBuffer data = raf_.slice(sh.ofs_, (int) sh.effSize_).order(byteOrder());
+            for (int ofs=0; ofs+entrySize<=data.limit(); ofs+=entrySize) {
+                long info = GetWord(data, ofs+wordSize, wordSize);
+                if ((wordSize == 8 ? info & 0xFFFFFFFFL : info & 0xFF) != relative)
+                    continue;
+                long addend = rela ? (wordSize == 8 ? data.getLong(ofs+2*wordSize)
+                                      : data.getInt(ofs+2*wordSize)) : 0;
+                index.add(GetWord(data, ofs, wordSize), addend, sh.ofs_+ofs);
             }
         }
+        index.sort();
+        relocations_ = index;
+        return relocations_;
+    }
+
+    /// reads the program headers, which are only needed for the load extent.
+    public void readProgramHeaders() throws IOException {
+        programs_ = new ArrayList<ProgramHeader>();
+        if (!valid_ || progHdrOfs_ == 0)
+            return;
+        seek(progHdrOfs_);
+        for(int ii=0; ii<progHdrEntries_; ++ii) {
+            ProgramHeader ph = new ProgramHeader();
+            ph.type_ = readUInt();
+            if (is64Bit())
+                skip(4); // flags
+            ph.ofs_ = readWord();
+            ph.vaddr_ = readWord();
+            skip(wordSize()); // physical address
+            ph.fileSize_ = readWord();
+            ph.memSize_ = readWord();
+            if (!is64Bit())
+                skip(4); // flags
+            ph.align_ = readWord();
+            skip(progHdrEntrySize_ - (2*4 + 6*wordSize()));
+            programs_.add(ph);
+        }
+    }
+
+    /// returns the range of addresses {start, end} the loadable segments occupy, rounded to
+    /// whole pages as they are mapped, relative to the load address of the file.
+    /// returns null if there are no loadable segments. requires readProgramHeaders.
+    public long[] loadExtent() {
+        long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+        for(int ii=0; programs_!=null && ii<programs_.size(); ++ii) {
+            ProgramHeader ph = programs_.get(ii);
+            if (ph.type_ != ProgTypeLoad || ph.memSize_ == 0)
+                continue;
+            start = Math.min(start, ph.vaddr_ & ~(PageSize-1));
+            end = Math.max(end, (ph.vaddr_ + ph.memSize_ + PageSize-1) & ~(PageSize-1));
+        }
+        return start < end ? new long[] { start, end } : null;
+    }
+
+    /// writes the sections read by readSections so they can be restored by loadSections.
+    public void saveSections(DataOutput out) throws IOException {
+        out.writeInt(sections_.size());
+        for(int ii=0; ii < sections_.size(); ++ii) {
+            SectionHeader sh = sections_.get(ii);
+            out.writeLong(sh.nameIndex_);
+            out.writeLong(sh.type_);
+            out.writeLong(sh.addr_);
+            out.writeLong(sh.ofs_);
+            out.writeLong(sh.size_);
+            out.writeUTF(sh.name_);
+        }
+    }
+
+    /// restores sections written by saveSections instead of reading them with readSections.
+    public void loadSections(DataInput in) throws IOException {
+        sections_.clear();
+        int count = in.readInt();
+        for(int ii=0; ii<count; ++ii) {
+            SectionHeader sh = new SectionHeader();
+            sh.nameIndex_ = in.readLong();
+            sh.type_ = in.readLong();
+            sh.addr_ = in.readLong();
+            sh.ofs_ = in.readLong();
+            sh.size_ = in.readLong();
+            sh.name_ = in.readUTF();
+            sh.effSize_ = sh.type_==8 ? 0 : sh.size_; // if type==NOBITS effective size=0
+            sections_.add(sh);
+        }
+        indexSections();
+    }
+
+    /// returns a digest of the ELF header, the section header table and the last 8 bytes of
+    /// the file (where the prelink information is), which identifies the layout of the file
+    /// without reading all of it. files which are not valid ELFs are identified by their
+    /// first 4KB instead.
+    /// it is a CRC-32: it only has to catch accidental changes (it is checked along with a
+    /// FileFingerprint), and unlike a MessageDigest it costs no security provider startup,
+    /// which is more than a cache hit saves on a short command.
+    public String contentDigest() throws IOException {
+        CRC32 crc = new CRC32();
+        long length = raf_.length();
+        if (valid_) {
+            digestRange(crc, 0, elfHeaderSize_, length);
+            digestRange(crc, sectHdrOfs_, (long)sectHdrEntrySize_*sectHdrEntries_, length);
+        }
+        else
+            digestRange(crc, 0, 4096, length);
+        digestRange(crc, length-8, 8, length);
+        return Long.toHexString(crc.getValue());
+    }
+
+    private void digestRange(Checksum crc, long ofs, long size, long length) throws IOException {
+        ofs = Math.max(0, ofs);
+        size = Math.min(size, length-ofs);
+        if (size <= 0)
+            return;
+        byte[] data = new byte[(int) Math.min(size, Integer.MAX_VALUE)];
+        seek(ofs);
+        raf_.readFully(data, 0, data.length);
+        crc.update(data, 0, data.length);
+    }
+
+    /// reads an unsigned word of the given size at ofs of buf (in the byte order of buf).
+    private static long GetWord(ByteBuffer buf, int ofs, int wordSize) {
+        return wordSize == 8 ? buf.getLong(ofs) : buf.getInt(ofs) & 0xFFFFFFFFL;
+    }
+
+    /// the null terminated string at ofs of buf, empty if ofs is out of buf.
+    private static String GetString(ByteBuffer buf, long ofs) {
+        StringBuilder builder = new StringBuilder();
+        for (long ii=ofs; ii<buf.limit(); ++ii) {
+            int ch = buf.get((int) ii) & 0xFF;
+            if (ch == 0)
+                break;
+            builder.append((char)ch);
+        }
+        return builder.toString();
+    }
+
+    /// builds the name and offset indexes of the sections.
+    private void indexSections() {
+        sectionsByName_.clear();
+        List<SectionHeader> inFile = new ArrayList<SectionHeader>();
+        for(int ii=0; ii < sections_.size(); ++ii) {
+            SectionHeader sh = sections_.get(ii);
+            if (!sectionsByName_.containsKey(sh.name_)) // first section with a name wins
+                sectionsByName_.put(sh.name_, sh);
+            if (sh.effSize_ > 0)
+                inFile.add(sh);
+        }
+        sectionsByOfs_ = inFile.toArray(new SectionHeader[inFile.size()]);
+        Arrays.sort(sectionsByOfs_, new Comparator<SectionHeader>() {
+                public int compare(SectionHeader sh1, SectionHeader sh2) {
+                    return sh1.ofs_ < sh2.ofs_ ? -1 : sh1.ofs_ > sh2.ofs_ ? 1 : 0;
+                }
+            });
     }
 
     private void readElfHeader() throws IOException {
@@ -211,14 +662,27 @@ public class ElfReader {
         if (valid_) {
             elfClass_ = readUByte();
             elfDataEncoding_ = readUByte();
+            if (elfClass_ == ElfClass32 && elfDataEncoding_ == ElfDataLittleEndian)
+                decoder_ = LittleEndian32;
+            else if (elfClass_ == ElfClass32 && elfDataEncoding_ == ElfDataBigEndian)
+                decoder_ = BigEndian32;
+            else if (elfClass_ == ElfClass64 && elfDataEncoding_ == ElfDataLittleEndian)
+                decoder_ = LittleEndian64;
+            else if (elfClass_ == ElfClass64 && elfDataEncoding_ == ElfDataBigEndian)
+                decoder_ = BigEndian64;
+            else {
+                valid_ = false;
+                return;
+            }
             skip(10);
             elfType_ = readUShort();
             elfMachine_ = readUShort();
             elfVersion_ = readUInt();
-            skip(4);
-            progHdrOfs_ = readUInt();
-            sectHdrOfs_ = readUInt();
-            skip(6);
+            skip(wordSize()); // entry point
+            progHdrOfs_ = readWord();
+            sectHdrOfs_ = readWord();
+            skip(4); // flags
+            elfHeaderSize_ = readUShort();
             progHdrEntrySize_ = readUShort();
             progHdrEntries_ = readUShort();
             sectHdrEntrySize_ = readUShort();
@@ -228,27 +692,32 @@ public class ElfReader {
     }
 
     private SectionHeader findSection(String name) {
-        for(int ii=0; ii < sections_.size(); ++ii) {
-            SectionHeader sh = sections_.get(ii);
-            if (sh.name_.equals(name))
-                return sh;
-        }
-        return null;
+        return sectionsByName_.get(name);
     }
 
     private static boolean offsetInSection(long ofs, SectionHeader sh) {
         return ofs >= sh.ofs_ && ofs < sh.ofs_+sh.size_;
     }
 
+    /// binary searches the last section starting at or before ofs.
+    /// sections are not expected to overlap in the file.
     private void findCurrentSection(long ofs) {
-        for(int ii=0; ii < sections_.size(); ++ii) {
-            SectionHeader sh = sections_.get(ii);
-            if (offsetInSection(ofs,sh)) {
-                currentSection_ = sh;
-                return;
+        int lo = 0, hi = sectionsByOfs_.length-1;
+        SectionHeader found = null;
+        while (lo <= hi) {
+            int mid = (lo+hi) >>> 1;
+            if (sectionsByOfs_[mid].ofs_ <= ofs) {
+                found = sectionsByOfs_[mid];
+                lo = mid+1;
             }
+            else
+                hi = mid-1;
         }
-        currentSection_ = null;
+        currentSection_ = found!=null && offsetInSection(ofs,found) ? found : null;
+    }
+
+    public void flush() throws IOException {
+        raf_.flush();
     }
 
     public void close() throws IOException {
@@ -0,0 +1,184 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/// Runs a task for each file of a list of files on a bounded ForkJoinPool.
+/// Results are handed back on the calling thread in the order of the files, as soon
+/// as the task of the file and of all the files before it have finished.
+public class FileBatch {
+
+    /// pattern of the files picked when a directory is given as input.
+    public static String DefaultGlob = "*.so";
+
+    public interface Task<T> {
+        public T run(File file) throws Exception;
+    }
+
+    public interface Handler<T> {
+        /// called in order of the files, either result or error is null.
+        public void done(File file, T result, Exception error);
+    }
+
+    /// output of a task which is buffered so it can be printed in order.
+    static public class Output {
+        public int status_ = 0;
+        private ByteArrayOutputStream outBuf_ = new ByteArrayOutputStream();
+        private ByteArrayOutputStream errBuf_ = new ByteArrayOutputStream();
+        private PrintStream out_ = new PrintStream(outBuf_);
+        private PrintStream err_ = new PrintStream(errBuf_);
+
+        public Output() {
+        }
+
+        /// output replayed from a previous run.
+        public Output(int status, byte[] out, byte[] err) {
+            status_ = status;
+            outBuf_.write(out, 0, out.length);
+            errBuf_.write(err, 0, err.length);
+        }
+
+        public PrintStream out() {
+            return out_;
+        }
+
+        public PrintStream err() {
+            return err_;
+        }
+
+        public boolean hasOutput() {
+            out_.flush();
+            return outBuf_.size() > 0;
+        }
+
+        public byte[] outBytes() {
+            out_.flush();
+            return outBuf_.toByteArray();
+        }
+
+        public byte[] errBytes() {
+            err_.flush();
+            return errBuf_.toByteArray();
+        }
+
+        /// writes the buffered output to the given streams, err might be null to drop
+        /// the buffered errors.
+        public void print(PrintStream out, PrintStream err) {
+            out_.flush();
+            err_.flush();
+            out.write(outBuf_.toByteArray(), 0, outBuf_.size());
+            if (err != null)
+                err.write(errBuf_.toByteArray(), 0, errBuf_.size());
+        }
+    }
+
+    /// true if the given input should be expanded to several files,
+    /// i.e. it is a directory or contains glob characters.
+    public static boolean IsMulti(String path) {
+        return new File(path).isDirectory() || IsGlob(path);
+    }
+
+    /// expands the given inputs: directories are searched recursively for files matching
+    /// DefaultGlob, inputs containing glob characters (*?[{) are matched against the whole
+    /// path of the files under their longest directory prefix without glob characters and
+    /// other inputs are taken as is. the files found under a directory are sorted.
+    public static List<File> ExpandFiles(List<String> paths) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (Iterator<String> iter = paths.iterator(); iter.hasNext();) {
+            String path = iter.next();
+            if (new File(path).isDirectory())
+                files.addAll(Find(Paths.get(path), "glob:"+DefaultGlob, true));
+            else if (IsGlob(path)) {
+                Path base = Paths.get(path.substring(0, GlobBaseLength(path)));
+                files.addAll(Find(base, "glob:"+path, false));
+            }
+            else
+                files.add(new File(path));
+        }
+        return files;
+    }
+
+    /// runs the task for all the given files using at most jobs threads and calls
+    /// the handler with the results in the order of the files.
+    public static <T> void Run(List<File> files, int jobs, final Task<T> task, Handler<T> handler) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, jobs));
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(files.size());
+            for (Iterator<File> iter = files.iterator(); iter.hasNext();) {
+                final File file = iter.next();
+                futures.add(pool.submit(new Callable<T>() {
+                        public T call() throws Exception {
+                            return task.run(file);
+                        }
+                    }));
+            }
+            for (int ii=0; ii<files.size(); ++ii) {
+                T result = null;
+                Exception error = null;
+                try {
+                    result = futures.get(ii).get();
+                } catch (ExecutionException e) {
+                    error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                } catch (InterruptedException e) {
+                    error = e;
+                }
+                handler.done(files.get(ii), result, error);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /// parses the value of a -j option, returns -1 if it is invalid.
+    public static int ParseJobs(String value) {
+        try {
+            int jobs = Integer.parseInt(value);
+            return jobs > 0 ? jobs : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static int DefaultJobs() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static boolean IsGlob(String path) {
+        return GlobBaseLength(path) < path.length();
+    }
+
+    /// length of the longest directory prefix of path without glob characters.
+    private static int GlobBaseLength(String path) {
+        int firstGlob = path.length();
+        String globChars = "*?[{";
+        for (int ii=0; ii<globChars.length(); ++ii) {
+            int ind = path.indexOf(globChars.charAt(ii));
+            if (ind >= 0 && ind < firstGlob)
+                firstGlob = ind;
+        }
+        if (firstGlob == path.length())
+            return firstGlob;
+        return path.lastIndexOf(File.separatorChar, firstGlob) + 1;
+    }
+
+    private static List<File> Find(Path base, String pattern, final boolean matchName) throws IOException {
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(pattern);
+        final List<File> found = new ArrayList<File>();
+        if (!Files.isDirectory(base))
+            return found;
+        Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() &&
+                        matcher.matches(matchName ? file.getFileName() : file))
+                        found.add(file.toFile());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        Collections.sort(found);
+        return found;
+    }
+
+}
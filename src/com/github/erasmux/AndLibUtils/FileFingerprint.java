@@ -0,0 +1,86 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/// Identifies a version of a file from a single stat, without reading it: its size and
+/// modification time, and where the file system has them its status change time (ctime)
+/// and inode. Size and modification time alone miss a same size edit which restores the
+/// modification time (cp -p, touch -r), but any write or change of the times updates the
+/// ctime and a file replaced by another one has another inode.
+/// Results which depend on the content of a file are only reused while it is the same.
+public class FileFingerprint {
+
+    public long size_;
+    public long mtime_;      // nanoseconds
+    public long ctime_ = -1; // nanoseconds, -1 if the file system has none
+    public long inode_ = -1; // -1 if the file system has none
+
+    private FileFingerprint() {
+    }
+
+    /// the current fingerprint of the file.
+    public static FileFingerprint Of(File file) throws IOException {
+        Path path = file.toPath();
+        FileFingerprint fingerprint = new FileFingerprint();
+        try {
+            Map<String,Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ctime,ino");
+            fingerprint.size_ = ((Long) attrs.get("size")).longValue();
+            fingerprint.mtime_ = Nanos((FileTime) attrs.get("lastModifiedTime"));
+            fingerprint.ctime_ = Nanos((FileTime) attrs.get("ctime"));
+            fingerprint.inode_ = ((Long) attrs.get("ino")).longValue();
+        } catch (UnsupportedOperationException e) {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            fingerprint.size_ = attrs.size();
+            fingerprint.mtime_ = Nanos(attrs.lastModifiedTime());
+        }
+        return fingerprint;
+    }
+
+    public static FileFingerprint Read(DataInput in) throws IOException {
+        FileFingerprint fingerprint = new FileFingerprint();
+        fingerprint.size_ = in.readLong();
+        fingerprint.mtime_ = in.readLong();
+        fingerprint.ctime_ = in.readLong();
+        fingerprint.inode_ = in.readLong();
+        return fingerprint;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(size_);
+        out.writeLong(mtime_);
+        out.writeLong(ctime_);
+        out.writeLong(inode_);
+    }
+
+    /// true if the file is still the same as when this fingerprint was taken, false if it
+    /// changed or can not be read.
+    public boolean matches(File file) {
+        try {
+            return equals(Of(file));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof FileFingerprint))
+            return false;
+        FileFingerprint fingerprint = (FileFingerprint) other;
+        return size_ == fingerprint.size_ && mtime_ == fingerprint.mtime_ &&
+            ctime_ == fingerprint.ctime_ && inode_ == fingerprint.inode_;
+    }
+
+    public int hashCode() {
+        return (int) (size_ ^ mtime_ ^ ctime_ ^ inode_);
+    }
+
+    private static long Nanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/// List of small patches (offset, old bytes, new bytes) to a file, which are collected
+/// first and then applied either in place or to a copy of the file, so the cost of
+/// applying them depends on the number of patches and not on the size of the file.
+/// Patching in place first writes a journal with the old bytes next to the file (moved
+/// into place atomically, so it is never partial) which is only removed once the patches
+/// are on disk. If a patch was interrupted, Recover rolls the file back using the journal.
+/// Patching a copy writes the copy next to the target and atomically moves it over the
+/// target, so the target is never missing or half written.
+public class FilePatcher {
+
+    private static final int JournalMagic = 0x414C554A; // "ALUJ"
+
+    static public class Patch {
+        public long ofs_;
+        public byte[] old_;
+        public byte[] new_;
+    }
+
+    private List<Patch> patches_ = new ArrayList<Patch>();
+
+    public void add(long ofs, byte[] oldBytes, byte[] newBytes) {
+        Patch patch = new Patch();
+        patch.ofs_ = ofs;
+        patch.old_ = oldBytes;
+        patch.new_ = newBytes;
+        patches_.add(patch);
+    }
+
+    public int size() {
+        return patches_.size();
+    }
+
+    public List<Patch> patches() {
+        return patches_;
+    }
+
+    /// the journal of an in place patch of the given file.
+    public static File JournalFile(File file) {
+        return new File(file.getPath()+".jnl");
+    }
+
+    /// rolls back an interrupted in place patch of the given file, if there was one.
+    /// returns true if the file was rolled back.
+    public static boolean Recover(File file) throws IOException {
+        File journal = JournalFile(file);
+        if (!journal.exists())
+            return false;
+        FilePatcher patcher = ReadJournal(journal);
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            for (int ii=0; ii<patcher.patches_.size(); ++ii) {
+                Patch patch = patcher.patches_.get(ii);
+                Write(channel, patch.ofs_, patch.old_);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        if (!journal.delete())
+            throw new IOException("Could not remove journal "+journal.getPath());
+        return true;
+    }
+
+    /// applies the patches to the file itself, through a journal.
+    /// fails without changing anything if the file does not hold the expected old bytes.
+    public void applyInPlace(File file) throws IOException {
+        File journal = JournalFile(file);
+        if (journal.exists())
+            throw new IOException("Previous patch of "+file.getPath()+" was interrupted, recover it first");
+
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            verify(channel, file);
+            writeJournal(journal);
+            for (int ii=0; ii<patches_.size(); ++ii) {
+                Patch patch = patches_.get(ii);
+                Write(channel, patch.ofs_, patch.new_);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        if (!journal.delete())
+            throw new IOException("Could not remove journal "+journal.getPath());
+    }
+
+    /// copies src next to dst, applies the patches to the copy and atomically replaces dst with it.
+    public void applyToCopy(File src, File dst) throws IOException {
+        File dir = dst.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("."+dst.getName()+".", ".tmp", dir); // prefix needs 3 characters
+        try {
+            CopyFile(src, temp);
+            FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+            try {
+                verify(channel, src);
+                for (int ii=0; ii<patches_.size(); ++ii) {
+                    Patch patch = patches_.get(ii);
+                    Write(channel, patch.ofs_, patch.new_);
+                }
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+            Files.move(temp.toPath(), dst.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } finally {
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    /// copies src to trg, letting the kernel move the data where it can.
+    static void CopyFile(File src, File trg) throws IOException {
+        FileChannel in = new FileInputStream(src).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(trg).getChannel();
+            try {
+                long size = in.size();
+                for (long pos = 0; pos < size; )
+                    pos += in.transferTo(pos, size-pos, out);
+                out.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void verify(FileChannel channel, File file) throws IOException {
+        for (int ii=0; ii<patches_.size(); ++ii) {
+            Patch patch = patches_.get(ii);
+            ByteBuffer current = ByteBuffer.allocate(patch.old_.length);
+            while (current.hasRemaining())
+                if (channel.read(current, patch.ofs_ + current.position()) < 0)
+                    throw new EOFException("Patch beyond end of "+file.getPath());
+            if (!Arrays.equals(current.array(), patch.old_))
+                throw new IOException(String.format("Unexpected content of %s at 0x%08X, file changed?",
+                                                    file.getPath(), patch.ofs_));
+        }
+    }
+
+    private void writeJournal(File journal) throws IOException {
+        File temp = File.createTempFile(journal.getName()+".", ".tmp",
+                                        journal.getAbsoluteFile().getParentFile());
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                out.writeInt(JournalMagic);
+                out.writeInt(patches_.size());
+                for (int ii=0; ii<patches_.size(); ++ii) {
+                    Patch patch = patches_.get(ii);
+                    out.writeLong(patch.ofs_);
+                    out.writeInt(patch.old_.length);
+                    out.write(patch.old_);
+                    out.write(patch.new_);
+                }
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } finally {
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    private static FilePatcher ReadJournal(File journal) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            if (in.readInt() != JournalMagic)
+                throw new IOException("Invalid journal "+journal.getPath());
+            FilePatcher patcher = new FilePatcher();
+            int count = in.readInt();
+            for (int ii=0; ii<count; ++ii) {
+                long ofs = in.readLong();
+                byte[] oldBytes = new byte[in.readInt()];
+                byte[] newBytes = new byte[oldBytes.length];
+                in.readFully(oldBytes);
+                in.readFully(newBytes);
+                patcher.add(ofs, oldBytes, newBytes);
+            }
+            return patcher;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void Write(FileChannel channel, long ofs, byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining())
+            channel.write(buf, ofs + buf.position());
+    }
+
+}
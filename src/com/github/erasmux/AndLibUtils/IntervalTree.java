@@ -0,0 +1,137 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.util.*;
+
+/// Static interval tree of half open ranges [start, end) with a value each.
+/// All intervals are added first and then build() sorts them by start and stores, for the
+/// implicit balanced tree over the sorted array (the middle of each range is its root), the
+/// largest end of each subtree. Queries for the intervals overlapping a range then take
+/// O(log n + k), finding all overlapping pairs O(n log n) plus the size of the result and
+/// the gaps between the intervals a single pass over the sorted intervals.
+public class IntervalTree<T> {
+
+    static public class Interval<T> {
+        public long start_;
+        public long end_;
+        public T value_;
+
+        public boolean overlaps(long start, long end) {
+            return start_ < end && start < end_ && start_ < end_ && start < end;
+        }
+    }
+
+    private List<Interval<T>> intervals_ = new ArrayList<Interval<T>>();
+    private long[] maxEnd_ = null; // per subtree, at the index of its root
+
+    public void add(long start, long end, T value) {
+        Interval<T> interval = new Interval<T>();
+        interval.start_ = start;
+        interval.end_ = end;
+        interval.value_ = value;
+        intervals_.add(interval);
+        maxEnd_ = null;
+    }
+
+    public int size() {
+        return intervals_.size();
+    }
+
+    /// the intervals in order of their start (and end for equal starts).
+    public List<Interval<T>> intervals() {
+        build();
+        return intervals_;
+    }
+
+    /// sorts the intervals and computes the subtree maximums, done on the first query after adding.
+    public void build() {
+        if (maxEnd_ != null)
+            return;
+        Collections.sort(intervals_, new Comparator<Interval<T>>() {
+                public int compare(Interval<T> i1, Interval<T> i2) {
+                    if (i1.start_ != i2.start_)
+                        return i1.start_ < i2.start_ ? -1 : 1;
+                    return i1.end_ < i2.end_ ? -1 : i1.end_ > i2.end_ ? 1 : 0;
+                }
+            });
+        maxEnd_ = new long[intervals_.size()];
+        buildMax(0, intervals_.size()-1);
+    }
+
+    /// returns the intervals overlapping [start, end) in order of their start.
+    public List<Interval<T>> overlapping(long start, long end) {
+        build();
+        List<Interval<T>> result = new ArrayList<Interval<T>>();
+        query(0, intervals_.size()-1, start, end, result);
+        return result;
+    }
+
+    /// returns all pairs of overlapping intervals, each pair once with the interval starting
+    /// first (in the order of intervals()) first.
+    public List<Interval<T>[]> overlaps() {
+        build();
+        List<Interval<T>[]> result = new ArrayList<Interval<T>[]>();
+        List<Interval<T>> found = new ArrayList<Interval<T>>();
+        for (int ii=0; ii<intervals_.size(); ++ii) {
+            Interval<T> interval = intervals_.get(ii);
+            if (interval.start_ >= interval.end_)
+                continue;
+            // the result is in sorted order, only the intervals after this one are taken
+            // so each pair is reported once:
+            found.clear();
+            query(0, intervals_.size()-1, interval.start_, interval.end_, found);
+            int self = 0;
+            while (found.get(self) != interval)
+                ++self;
+            for (int jj=self+1; jj<found.size(); ++jj) {
+                @SuppressWarnings({"unchecked","rawtypes"})
+                Interval<T>[] pair = new Interval[] { interval, found.get(jj) };
+                result.add(pair);
+            }
+        }
+        return result;
+    }
+
+    /// returns the ranges {start, end} between the first start and the last end which no
+    /// interval covers, in increasing order.
+    public List<long[]> gaps() {
+        build();
+        List<long[]> result = new ArrayList<long[]>();
+        long covered = Long.MIN_VALUE;
+        for (int ii=0; ii<intervals_.size(); ++ii) {
+            Interval<T> interval = intervals_.get(ii);
+            if (interval.start_ >= interval.end_)
+                continue;
+            if (covered != Long.MIN_VALUE && interval.start_ > covered)
+                result.add(new long[] { covered, interval.start_ });
+            covered = Math.max(covered, interval.end_);
+        }
+        return result;
+    }
+
+    private long buildMax(int lo, int hi) {
+        if (lo > hi)
+            return Long.MIN_VALUE;
+        int mid = (lo+hi) >>> 1;
+        long max = Math.max(intervals_.get(mid).end_, Math.max(buildMax(lo, mid-1), buildMax(mid+1, hi)));
+        maxEnd_[mid] = max;
+        return max;
+    }
+
+    /// collects the intervals overlapping [start, end) of the subtree of the range [lo, hi]
+    /// of the sorted intervals, in sorted order.
+    private void query(int lo, int hi, long start, long end, List<Interval<T>> result) {
+        while (lo <= hi) {
+            int mid = (lo+hi) >>> 1;
+            if (maxEnd_[mid] <= start)
+                return; // nothing in this subtree ends after start
+            query(lo, mid-1, start, end, result);
+            Interval<T> interval = intervals_.get(mid);
+            if (interval.start_ >= end)
+                return; // neither it nor anything after it starts before end
+            if (interval.overlaps(start, end))
+                result.add(interval);
+            lo = mid+1;
+        }
+    }
+
+}
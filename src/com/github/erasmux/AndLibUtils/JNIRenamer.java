@@ -2,8 +2,9 @@
 package com.github.erasmux.AndLibUtils;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
-import java.nio.channels.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JNIRenamer {
 
@@ -12,20 +13,70 @@ public class JNIRenamer {
     private boolean readonly_;
     private ElfReader reader_;
     private long prelinked_;
+    private MetadataCache cache_;
+    private MetadataCache.Entry cacheEntry_;
+    private FilePatcher patches_;
+    private ReaderCache readers_;
+    private ReaderCache.Item readerItem_;
 
 
     public JNIRenamer(File file,String filename,boolean readonly) throws IOException, FileNotFoundException {
         file_ = file;
         fileName_ = filename;
         readonly_ = readonly;
-        
-        RandomAccessFile raf = new RandomAccessFile(file_, "r");
-        prelinked_ = Prelinked.GetPrelinkAddr(raf);
-        raf.close();
+
+        // readonly readers are reused when running as a server:
+        long start = Stats.Start();
+        readers_ = readonly ? ReaderCache.Shared : null;
+        readerItem_ = readers_ != null ? readers_.acquire(file_) : null;
+        if (readerItem_ != null) {
+            reader_ = readerItem_.reader_;
+            prelinked_ = readerItem_.prelinked_;
+            cache_ = MetadataCache.Default();
+            cacheEntry_ = readerItem_.cacheEntry_;
+            Stats.Stop(Stats.Open, start);
+            return;
+        }
+        if (readers_ != null)
+            readerItem_ = readers_.create(file_);
 
         reader_ = new ElfReader(file_, readonly ? "r" : "rw");
-        if (reader_.valid())
-            reader_.readSections();
+        try {
+            // only files opened readonly are cached, others are about to change:
+            cache_ = readonly ? MetadataCache.Default() : null;
+            if (cache_ != null) {
+                String digest = reader_.contentDigest();
+                cacheEntry_ = cache_.lookup(file_, digest);
+                if (cacheEntry_ != null) {
+                    prelinked_ = cacheEntry_.prelinked_;
+                    reader_.loadSections(new DataInputStream(new ByteArrayInputStream(cacheEntry_.sections_)));
+                    Stats.Stop(Stats.Open, start);
+                    return;
+                }
+                cacheEntry_ = cache_.create(file_, digest);
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file_, "r");
+            try {
+                prelinked_ = Prelinked.GetPrelinkAddr(raf);
+            } finally {
+                raf.close();
+            }
+
+            if (reader_.valid())
+                reader_.readSections();
+
+            if (cacheEntry_ != null) {
+                cacheEntry_.prelinked_ = prelinked_;
+                ByteArrayOutputStream sections = new ByteArrayOutputStream();
+                reader_.saveSections(new DataOutputStream(sections));
+                cacheEntry_.sections_ = sections.toByteArray();
+            }
+            Stats.Stop(Stats.Open, start);
+        } catch (IOException e) {
+            reader_.close();
+            throw e;
+        }
     }
 
     public File file() {
@@ -40,26 +91,36 @@ public class JNIRenamer {
     /// returns number of times the function was found/replaced. returns -1 on failure.
     public int findRenameFunc(String functionSig, String newName,
                               PrintStream out, PrintStream log, PrintStream err) throws IOException {
-        boolean rename = newName != null;
-        if (rename && readonly_) {
-            if (err != null)
-                err.println("ERROR: JNIRenamer is readonly, can not rename function.");
-            return -1;
-        }
+        int[] counts = findRenameFuncs(new String[] { functionSig },
+                                       newName==null ? null : new String[] { newName },
+                                       out, log, err);
+        return counts==null ? -1 : counts[0];
+    }
+
+    /// search for all the given functions, and if newNames!=null also tries to replace each of
+    /// them with the new name at the same index. all functions are handled with a single pass
+    /// over .rodata and a single pass over .data.
+    /// if the renamer is readonly the file is not modified, instead the patches needed to
+    /// rename the functions are collected and can be applied using patches().
+    /// returns number of times each function was found/replaced. returns null on failure.
+    public int[] findRenameFuncs(String[] functionSigs, String[] newNames,
+                                 PrintStream out, PrintStream log, PrintStream err) throws IOException {
+        boolean rename = newNames != null;
+        patches_ = rename && readonly_ ? new FilePatcher() : null;
         if (!reader_.valid()) {
             if (err != null)
                 err.println("ERROR: File "+filename()+" is not a valid ELF!");
-            return -1;
+            return null;
         }
         if (!reader_.hasSection(".data")) {
             if (err != null)
                 err.println("ERROR: File "+filename()+" does not have a .data section?!");
-            return -1;
+            return null;
         }
         if (!reader_.hasSection(".rodata")) {
             if (err != null)
                 err.println("ERROR: File "+filename()+" does not have a .rodata section?!");
-            return -1;
+            return null;
         }
 
         long rodataAddr = reader_.sectionAddr(".rodata");
@@ -74,101 +135,254 @@ public class JNIRenamer {
             }
         }
 
-        int splitSig = functionSig.indexOf('(');
-        if (splitSig < 0) {
-            if (err != null)
-                err.println("ERROR: Invalid function signature: "+functionSig);
-            return -1;
+        // for each function we search for its name, signature and possibly new name:
+        final int n = functionSigs.length;
+        int stride = rename ? 3 : 2;
+        String[] strs = new String[n*stride];
+        String[] labels = new String[n*stride];
+        for (int ii=0; ii<n; ++ii) {
+            String functionSig = functionSigs[ii];
+            int splitSig = functionSig.indexOf('(');
+            if (splitSig < 0) {
+                if (err != null)
+                    err.println("ERROR: Invalid function signature: "+functionSig);
+                return null;
+            }
+            strs[ii*stride] = functionSig.substring(0,splitSig);
+            labels[ii*stride] = "function name";
+            strs[ii*stride+1] = functionSig.substring(splitSig);
+            labels[ii*stride+1] = "signature";
+            if (rename) {
+                strs[ii*stride+2] = newNames[ii];
+                labels[ii*stride+2] = "new function name";
+            }
         }
-        String funcName = functionSig.substring(0,splitSig);
-        String onlySig = functionSig.substring(splitSig);
-
-        Set<Long> funcOffsets = findStringInSection(funcName,".rodata",false,rodataBaseAddr,
-                                                    "function name",log,err);
-        Set<Long> sigOffsets = findStringInSection(onlySig,".rodata",false,rodataBaseAddr,
-                                                   "signature",log,err);
-        Set<Long> newOffsets = newName==null ? null :
-            findStringInSection(newName,".rodata",true,rodataBaseAddr,
-                                "new function name",log,err);
-        if (funcOffsets == null || sigOffsets == null)
-            return -1;
-        long newOffset = 0;
-        if (rename) {
-            if (newOffsets == null)
-                return -1;
-            newOffset = newOffsets.iterator().next().longValue();
-            if (log != null)
-                log.println(String.format("Matches will be replaced with new offset: 0x%08X",newOffset));
+
+        // search for all the strings we need in a single pass over .rodata:
+        StringMatcher matcher = findStringsInSection(strs,labels,".rodata",log,err);
+        if (matcher == null)
+            return null;
+        final LongHashSet[] funcOffsets = new LongHashSet[n];
+        final LongHashSet[] sigOffsets = new LongHashSet[n];
+        long[] newOffsets = rename ? new long[n] : null;
+        final LongHashSet allFuncOffsets = new LongHashSet();
+        final LongHashSet allSigOffsets = new LongHashSet();
+        for (int ii=0; ii<n; ++ii) {
+            LongHashSet funcOfs = matchOffsets(matcher,ii*stride,labels[ii*stride],".rodata",
+                                               rodataBaseAddr,log,err);
+            LongHashSet sigOfs = matchOffsets(matcher,ii*stride+1,labels[ii*stride+1],".rodata",
+                                              rodataBaseAddr,log,err);
+            // if the name or signature are not in .rodata the function can not be registered:
+            if (funcOfs == null || sigOfs == null)
+                funcOfs = sigOfs = new LongHashSet();
+            funcOffsets[ii] = funcOfs;
+            sigOffsets[ii] = sigOfs;
+            allFuncOffsets.addAll(funcOfs);
+            allSigOffsets.addAll(sigOfs);
+            if (rename) {
+                newOffsets[ii] = bestMatchOffset(matcher,ii*stride+2,labels[ii*stride+2],".rodata",
+                                                 rodataBaseAddr,log,err);
+                if (newOffsets[ii] < 0)
+                    return null;
+                if (log != null)
+                    log.println(String.format("Matches%s will be replaced with new offset: 0x%08X",
+                                              n > 1 ? " of "+functionSigs[ii] : "",newOffsets[ii]));
+            }
         }
 
+        // JNINativeMethod arrays of position independent libraries are usually in .data.rel.ro,
+        // and with RELA relocations their pointers are the addends of relative relocations:
+        List<String> sections = new ArrayList<String>();
+        for (int ii=0; ii<NativeMethodTable.DataSections.length; ++ii)
+            if (reader_.sectionSize(NativeMethodTable.DataSections[ii]) > 0)
+                sections.add(NativeMethodTable.DataSections[ii]);
         if (log != null)
-            log.println(String.format("Searching%s .data for occurences of the function:",rename ? " and replacing" : ""));
-        reader_.seekSection(".data",0);
-        long dataAddr = reader_.sectionAddr(".data");
-        int count = 0;
-        Long lastValue = null;
-        while (!reader_.finishedSection()) {
-            Long curValue = new Long(reader_.readUInt());
-            if (lastValue != null && funcOffsets.contains(lastValue)
-                && sigOffsets.contains(curValue)) {
-                if (out != null)
-                    out.println(String.format("0x%08X",reader_.currentOffsetInSection()+dataAddr-8));
+            log.println(String.format("Searching%s %s for occurences of the function%s:",
+                                      rename ? " and replacing" : "",
+                                      sections.isEmpty() ? ".data" : Join(sections, ", "), n > 1 ? "s" : ""));
+        long start = Stats.Start();
+        RelocationIndex relocs = reader_.relocations();
+        boolean rela = relocs.rela() && relocs.size() > 0;
+        long base = prelinked_ >= 0 ? prelinked_ : 0;
+        int[] counts = new int[n];
+        int wordSize = reader_.wordSize();
+        ResultWriter results = out!=null ? new ResultWriter(out) : null;
+        reader_.hintAccess(RandomAccessData.AccessSequential);
+        // the words are scanned concurrently in chunks, the few matches are then handled in order:
+        SectionScanner.PairMatcher pairs = new SectionScanner.PairMatcher() {
+                public int match(long first, long second) {
+                    if (!allFuncOffsets.contains(first) || !allSigOffsets.contains(second))
+                        return -1;
+                    for (int ii=0; ii<n; ++ii)
+                        if (funcOffsets[ii].contains(first) && sigOffsets[ii].contains(second))
+                            return ii;
+                    return -1;
+                }
+            };
+        for (int si=0; si<sections.size(); ++si) {
+            String section = sections.get(si);
+            long dataAddr = reader_.sectionAddr(section);
+            long dataOfs = reader_.sectionOfs2FileOfs(section,0);
+            ByteBuffer data = reader_.sectionSlice(section);
+            long[] found = SectionScanner.ScanWordPairs(data, wordSize, dataAddr, rela ? relocs : null, base, pairs);
+            for (int jj=0; jj<found.length; jj+=2) {
+                int word = (int) found[jj];
+                int ii = (int) found[jj+1];
+                long addr = dataAddr+(long)word*wordSize;
+                if (results != null && ResultWriter.Json)
+                    results.begin("match").field("file",filename()).field("function",functionSigs[ii])
+                        .hexField("addr",addr).field("renamed",rename).end();
+                else if (results != null)
+                    results.hexLine(addr, n > 1 ? functionSigs[ii] : null);
                 if (rename) {
-                    reader_.reseek(-8);
-                    reader_.writeUInt(newOffset);
-                    reader_.skip(4);
+                    long raw = wordSize == 8 ? data.getLong(word*8) : data.getInt(word*4) & 0xFFFFFFFFL;
+                    int reloc = rela ? relocs.find(addr) : -1;
+                    if (reloc >= 0) {
+                        long value = relocs.addend(reloc)+base;
+                        replaceWord(relocs.entryOfs(reloc)+2*wordSize, value-base, newOffsets[ii]-base);
+                        // some linkers also store the relocated value in the word:
+                        if (raw == value)
+                            replaceWord(dataOfs+(long)word*wordSize, raw, newOffsets[ii]);
+                    }
+                    else
+                        replaceWord(dataOfs+(long)word*wordSize, raw, newOffsets[ii]);
                 }
-                ++count;
+                ++counts[ii];
             }
-            lastValue = curValue;
         }
-        
-        return count;
+        reader_.hintAccess(RandomAccessData.AccessNormal);
+        Stats.Stop(Stats.DataScan, start);
+
+        return counts;
     }
 
-    /// searches the given section for the given string returning all the offset it is found at.
-    /// if onlyBest is true than preferably an exact match is returned, if there is no exact match
-    /// the last non-exact match is returned.
-    /// label is just for printing message and denotes what string we are looking for.
-    private Set<Long> findStringInSection(String str, String section, boolean onlyBest, long deltaOfs,
-                                          String label, PrintStream log, PrintStream err) throws IOException {
-        if (str.length() < 1) {
-            if (err != null)
-                err.println("Invalid "+label+" - empty string?!");
-            return null;
+    /// replaces the word at the given file offset, by adding a patch if the renamer is readonly.
+    private void replaceWord(long fileOfs, long oldValue, long newValue) throws IOException {
+        if (patches_ != null) {
+            patches_.add(fileOfs, reader_.encodeWord(oldValue), reader_.encodeWord(newValue));
+            return;
         }
+        long pos = reader_.filePointer();
+        reader_.seek(fileOfs);
+        reader_.writeWord(newValue);
+        reader_.seek(pos);
+    }
 
-        if (log != null)
-            log.println("Searching "+section+" for "+label+" \""+str+"\"...");
-        Set<Long> offsets = new TreeSet<Long>();
+    private static String Join(List<String> strs, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (int ii=0; ii<strs.size(); ++ii) {
+            if (ii > 0)
+                joined.append(separator);
+            joined.append(strs.get(ii));
+        }
+        return joined.toString();
+    }
+
+    /// patches collected by the last findRenameFuncs of a readonly renamer, null if there are none.
+    public FilePatcher patches() {
+        return patches_;
+    }
+
+    /// scans the data sections once for all the JNINativeMethod entries of the library.
+    public NativeMethodTable nativeMethods() throws IOException {
+        return new NativeMethodTable(reader_, prelinked_);
+    }
+
+    /// searches the given section for all the given strings in a single pass.
+    /// labels are just for printing message and denote what strings we are looking for.
+    /// returns null if one of the strings is invalid.
+    private StringMatcher findStringsInSection(String[] strs, String[] labels, String section,
+                                               PrintStream log, PrintStream err) throws IOException {
+        for (int ii=0; ii<strs.length; ++ii) {
+            if (strs[ii].length() < 1) {
+                if (err != null)
+                    err.println("Invalid "+labels[ii]+" - empty string?!");
+                return null;
+            }
+            if (log != null)
+                log.println("Searching "+section+" for "+labels[ii]+" \""+strs[ii]+"\"...");
+        }
+
+        StringMatcher matcher = new StringMatcher(strs);
+        boolean cached = cacheEntry_ != null;
+        for (int ii=0; cached && ii<strs.length; ++ii)
+            cached = cacheEntry_.matches(section, strs[ii]) != null;
+        if (cached) {
+            for (int ii=0; ii<strs.length; ++ii)
+                matcher.setMatches(ii, cacheEntry_.matches(section, strs[ii]));
+            return matcher;
+        }
+
+        long start = Stats.Start();
         reader_.seekSection(section,0);
+        reader_.hintAccess(RandomAccessData.AccessSequential);
+        reader_.seekStrings(matcher);
+        reader_.hintAccess(RandomAccessData.AccessNormal);
+        Stats.Stop(Stats.StringScan, start);
+        for (int ii=0; cacheEntry_ != null && ii<strs.length; ++ii)
+            cacheEntry_.setMatches(section, strs[ii], matcher.matches(ii));
+        return matcher;
+    }
+
+    /// returns all the offsets (+deltaOfs) the string with the given index was found at by
+    /// the matcher, or null if it was not found.
+    /// label is just for printing message and denotes what string we are looking for.
+    private LongHashSet matchOffsets(StringMatcher matcher, int ind, String label, String section,
+                                     long deltaOfs, PrintStream log, PrintStream err) {
+        List<StringMatcher.Match> matches = matcher.matches(ind);
+        LongHashSet offsets = new LongHashSet(matches.size());
         long sectionAddr = reader_.sectionAddr(section);
-        long lastMatch=-1,findOfs;
-        while ( (findOfs=reader_.seekString(str)) >= 0 ) {
-            if (onlyBest)
-                lastMatch = findOfs+deltaOfs;
-            else
-                offsets.add(new Long(findOfs+deltaOfs));
+        for (int ii=0; ii<matches.size(); ++ii) {
+            long findOfs = matches.get(ii).ofs_;
+            offsets.add(findOfs+deltaOfs);
             if (log!=null)
                 log.println(String.format("  found "+label+" @ 0x%08X",findOfs+sectionAddr));
-            if (onlyBest && reader_.lastMatchWasExact())
-                break;
         }
 
-        if (onlyBest && lastMatch > -1)
-            offsets.add(new Long(lastMatch));
-
-        if (offsets.size() <= 0) {
+        if (offsets.isEmpty()) {
             if (err != null)
-                err.println("ERROR: "+label+" not found in .rodata: "+str);
+                err.println("ERROR: "+label+" not found in "+section+": "+matcher.string(ind));
             return null;
         }
 
         return offsets;
     }
 
+    /// returns the best offset (+deltaOfs) the string with the given index was found at by the
+    /// matcher: preferably an exact match, if there is no exact match the last non-exact match.
+    /// returns -1 if it was not found.
+    /// label is just for printing message and denotes what string we are looking for.
+    private long bestMatchOffset(StringMatcher matcher, int ind, String label, String section,
+                                 long deltaOfs, PrintStream log, PrintStream err) {
+        List<StringMatcher.Match> matches = matcher.matches(ind);
+        long sectionAddr = reader_.sectionAddr(section);
+        long lastMatch=-1;
+        for (int ii=0; ii<matches.size(); ++ii) {
+            StringMatcher.Match match = matches.get(ii);
+            lastMatch = match.ofs_+deltaOfs;
+            if (log!=null)
+                log.println(String.format("  found "+label+" @ 0x%08X",match.ofs_+sectionAddr));
+            if (match.exact_)
+                break;
+        }
+
+        if (lastMatch < 0 && err != null)
+            err.println("ERROR: "+label+" not found in "+section+": "+matcher.string(ind));
+
+        return lastMatch;
+    }
+
     public void close() throws IOException {
-        reader_.close();
+        if (cacheEntry_ != null && cacheEntry_.modified())
+            cache_.store(file_, cacheEntry_);
+        if (readerItem_ != null) {
+            readerItem_.reader_ = reader_;
+            readerItem_.prelinked_ = prelinked_;
+            readerItem_.cacheEntry_ = cacheEntry_;
+            readers_.release(readerItem_);
+        }
+        else
+            reader_.close();
     }
 
     // Functions for Command line interface:
@@ -176,126 +390,541 @@ public class JNIRenamer {
     public static String CommandName = "JNI";
     public static String RenameCmd = "rename";
     public static String FindCmd = "find";
+    public static String ListCmd = "list";
 
     public static String Usage() {
-        return CommandName+" ["+RenameCmd+"|"+FindCmd+"] <file> ....";
+        return CommandName+" ["+RenameCmd+"|"+FindCmd+"|"+ListCmd+"] <file> ....";
     }
 
-    static void PrintUsage() {
-        System.out.println("usage: "+CommandLine.Command+" "+CommandName+" "+RenameCmd+
-                           " [-o outfile] [-v] <file> <full function signature> <new function name>");
-        System.out.println("       "+CommandLine.Command+" "+CommandName+" "+FindCmd+
-                           " [-v] <file> <full function signature>");
+    static void PrintUsage(PrintStream stdout) {
+        stdout.println("usage: "+CommandLine.Command+" "+CommandName+" "+RenameCmd+
+                           " [-o outfile] [-v] [-j N] [-d] <file> <full function signature> <new function name>");
+        stdout.println("       "+CommandLine.Command+" "+CommandName+" "+RenameCmd+
+                           " [-o outfile] [-v] [-j N] [-d] -m <mapfile> <file>");
+        stdout.println("       "+CommandLine.Command+" "+CommandName+" "+FindCmd+
+                           " [-v] [-j N] [-d] [-i manifest] <file> <full function signature>");
+        stdout.println("       "+CommandLine.Command+" "+CommandName+" "+ListCmd+
+                           " [-j N] [-p prefix] [-s pattern] [-f <full function signature>] ... <files>");
     }
 
     public static boolean CheckArgs(String args[]) {
         return args.length >= 2 && args[0].equals(CommandName) &&
-            (args[1].equals(RenameCmd) || args[1].equals(FindCmd));
+            (args[1].equals(RenameCmd) || args[1].equals(FindCmd) || args[1].equals(ListCmd));
     }
 
-    public static boolean Help(String args[]) {
+    public static boolean Help(String args[], PrintStream stdout) {
         if (args.length >= 2 && args[1].equals(CommandName)) {
-            PrintUsage();
-            System.out.println();
-            System.out.println(CommandName+" "+RenameCmd+" - Tries to rename the given JNI function to the new name");
-            System.out.println(" <full function signature> : for example: \"native_drawText(I[CIIFFI)V\"");
-            System.out.println(" <new function name> :       for example: \"drawText\"");
-            System.out.println(" -o outfile : write output to given file (default is overwrite current file)");
-            System.out.println(" -v         : be verbose");
-            System.out.println();
-            System.out.println(CommandName+" "+FindCmd+"   - Searches for a function with the given name and signature");
-            System.out.println("             prints all offsets it is found at and returns 0 on success");
-            System.out.println("             returns 1 on failure");
+            PrintUsage(stdout);
+            stdout.println();
+            stdout.println(CommandName+" "+RenameCmd+" - Tries to rename the given JNI function to the new name");
+            stdout.println(" <full function signature> : for example: \"native_drawText(I[CIIFFI)V\"");
+            stdout.println(" <new function name> :       for example: \"drawText\"");
+            stdout.println(" -m mapfile : rename all the functions listed in the given file in a single pass,");
+            stdout.println("              each line holds: <full function signature> <new function name>");
+            stdout.println("              (empty lines and lines starting with # are ignored)");
+            stdout.println(" -o outfile : write output to given file (default is overwrite current file)");
+            stdout.println(" -v         : be verbose");
+            stdout.println(" -j N       : process up to N files in parallel (default is number of cores)");
+            stdout.println(" -i manifest: ("+FindCmd+" of multiple files) keep the results of each file in the given file,");
+            stdout.println("              and only search the files which changed since the previous run using it");
+            stdout.println(" -d         : (multiple files) process byte-identical files once, the renames of a file are");
+            stdout.println("              applied to all its copies, which are reported as duplicates");
+            stdout.println(" <file> can also be a directory (all "+FileBatch.DefaultGlob+" files under it are processed)");
+            stdout.println(" or a glob pattern such as \"system/lib/*.so\", in which case every file is renamed in place");
+            stdout.println();
+            stdout.println(CommandName+" "+FindCmd+"   - Searches for a function with the given name and signature");
+            stdout.println("             prints all offsets it is found at and returns 0 on success");
+            stdout.println("             returns 1 on failure");
+            stdout.println();
+            stdout.println(CommandName+" "+ListCmd+"   - Lists all the JNI functions registered by the given files (the");
+            stdout.println("             JNINativeMethod entries of their data sections), found in a single pass");
+            stdout.println(" -p prefix  : only list the functions whose name starts with prefix");
+            stdout.println(" -s pattern : only list the functions whose signature matches pattern, where * matches");
+            stdout.println("              any characters and ? a single one, for example: \"(I*)V\"");
+            stdout.println(" -f sig     : instead of listing, find the given full function signature; can be given");
+            stdout.println("              many times, all are answered from the same list");
+            stdout.println("             returns 0 if any function was listed/found, 1 otherwise");
             return true;
         }
         return false;
     }
 
-    public static int Run(String args[]) {
+    public static int Run(String args[], PrintStream stdout, PrintStream stderr) {
+        if (args.length > 1 && args[1].equals(ListCmd))
+            return RunList(args, stdout, stderr);
         boolean rename = args.length > 1 && (args[1].equals(RenameCmd));
         boolean find = args.length > 1 && (args[1].equals(FindCmd));
         if (args.length < 4 || !CheckArgs(args) || (!rename && !find)) {
-            PrintUsage();
+            PrintUsage(stdout);
             return -1;
         }
 
         boolean verbose = false;
         String outfile = null;
+        String mapfile = null;
+        String manifestFile = null;
+        boolean dedup = false;
+        int jobs = FileBatch.DefaultJobs();
         List<String> params = new LinkedList<String>();
         for (int ii=2; ii<args.length; ++ii) {
             if (args[ii].equals("-o") && (ii+1)<args.length) {
                 outfile = args[++ii];
                 if (!rename) {
-                    System.err.println("Warning: invalid argument -o for "+args[1]+" command, ignoring: -o "+outfile);
+                    stderr.println("Warning: invalid argument -o for "+args[1]+" command, ignoring: -o "+outfile);
                     outfile = null;
                 }
             }
+            else if (args[ii].equals("-m") && (ii+1)<args.length) {
+                mapfile = args[++ii];
+                if (!rename) {
+                    stderr.println("Warning: invalid argument -m for "+args[1]+" command, ignoring: -m "+mapfile);
+                    mapfile = null;
+                }
+            }
+            else if (args[ii].equals("-i") && (ii+1)<args.length) {
+                manifestFile = args[++ii];
+                if (!find) {
+                    stderr.println("Warning: invalid argument -i for "+args[1]+" command, ignoring: -i "+manifestFile);
+                    manifestFile = null;
+                }
+            }
+            else if (args[ii].equals("-j") && (ii+1)<args.length) {
+                jobs = FileBatch.ParseJobs(args[++ii]);
+                if (jobs < 0) {
+                    stderr.println("Error: invalid number of jobs: "+args[ii]);
+                    return -1;
+                }
+            }
             else if (args[ii].equals("-v"))
                 verbose = true;
+            else if (args[ii].equals("-d"))
+                dedup = true;
             else params.add(args[ii]);
         }
 
-        int requiredArgs = rename ? 3 : 2;
+        int requiredArgs = mapfile!=null ? 1 : rename ? 3 : 2;
 
         if (params.size() < requiredArgs) {
-            PrintUsage();
+            PrintUsage(stdout);
             return 1;
         }
         if (params.size() > requiredArgs) {
-            System.err.print("Warning: too many parameters, ignoring:");
+            stderr.print("Warning: too many parameters, ignoring:");
             for (int ii=requiredArgs; ii<params.size(); ++ii)
-                System.err.print(" "+params.get(ii));
-            System.err.println();
+                stderr.print(" "+params.get(ii));
+            stderr.println();
         }
         String infile = params.get(0);
-        String functionSig = params.get(1);
-        String newName = rename ? params.get(2) : null;
+        String[] functionSigs;
+        String[] newNames;
+        if (mapfile != null) {
+            List<String> sigs = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            try {
+                ReadRenameMap(new File(mapfile), sigs, names);
+            } catch (IOException e) {
+                stderr.println("Error reading map file "+mapfile+": "+e.getMessage());
+                return -3;
+            }
+            if (sigs.isEmpty()) {
+                stderr.println("ERROR: No functions to rename in map file "+mapfile);
+                return 1;
+            }
+            functionSigs = sigs.toArray(new String[sigs.size()]);
+            newNames = names.toArray(new String[names.size()]);
+        }
+        else {
+            functionSigs = new String[] { params.get(1) };
+            newNames = rename ? new String[] { params.get(2) } : null;
+        }
+
+        if (FileBatch.IsMulti(infile)) {
+            if (outfile != null) {
+                stderr.println("Error: -o can not be used when processing multiple files.");
+                return -1;
+            }
+            Manifest manifest = null;
+            if (manifestFile != null) {
+                // the results depend on the functions searched for and on how they are printed:
+                StringBuilder query = new StringBuilder(CommandName+" "+FindCmd);
+                for (int ii=0; ii<functionSigs.length; ++ii)
+                    query.append(' ').append(functionSigs[ii]);
+                query.append(verbose ? " -v" : "").append(ResultWriter.Json ? " ndjson" : "");
+                manifest = Manifest.Load(new File(manifestFile), query.toString());
+            }
+            return RunBatch(infile, functionSigs, newNames, jobs, verbose, dedup, manifest, stdout, stderr);
+        }
+        if (manifestFile != null) {
+            stderr.println("Error: -i can only be used when processing multiple files.");
+            return -1;
+        }
+        if (dedup)
+            stderr.println("Warning: -d only applies when processing multiple files, ignoring it.");
 
         File in = new File(infile);
         File out = outfile!=null ? new File(outfile) : in;
+        return ProcessFile(in, out, functionSigs, newNames, verbose, stdout, stderr, null);
+    }
 
-        // generate temp name and file:
-        File temp = null;
-        if (rename) {
-            int tempCount = 0;
-            while (temp == null) {
-                temp = new File(out.getParentFile(),out.getName()+String.format(".temp%04d",tempCount++));
-                if (temp.exists())
-                    temp = null;
+    /// lists (or finds the given functions in) the JNI functions registered by the input files.
+    static int RunList(String args[], PrintStream stdout, final PrintStream stderr) {
+        String prefix = null;
+        String sigPattern = null;
+        final List<String> queries = new ArrayList<String>();
+        int jobs = FileBatch.DefaultJobs();
+        List<String> inputs = new LinkedList<String>();
+        for (int ii=2; ii<args.length; ++ii) {
+            if (args[ii].equals("-p") && (ii+1)<args.length)
+                prefix = args[++ii];
+            else if (args[ii].equals("-s") && (ii+1)<args.length)
+                sigPattern = args[++ii];
+            else if (args[ii].equals("-f") && (ii+1)<args.length)
+                queries.add(args[++ii]);
+            else if (args[ii].equals("-j") && (ii+1)<args.length) {
+                jobs = FileBatch.ParseJobs(args[++ii]);
+                if (jobs < 0) {
+                    stderr.println("Error: invalid number of jobs: "+args[ii]);
+                    return -1;
+                }
             }
+            else inputs.add(args[ii]);
+        }
+        if (inputs.isEmpty()) {
+            PrintUsage(stdout);
+            return -1;
+        }
+        if (!queries.isEmpty() && (prefix != null || sigPattern != null))
+            stderr.println("Warning: -p and -s do not apply to -f, ignoring them.");
+
+        final boolean multi = inputs.size() > 1 || FileBatch.IsMulti(inputs.get(0));
+        List<File> files;
+        try {
+            files = FileBatch.ExpandFiles(inputs);
+        } catch (IOException e) {
+            stderr.println("Error listing files: "+e.getMessage());
+            return -3;
         }
 
+        final String finalPrefix = prefix;
+        final String finalPattern = sigPattern;
+        final int[] found = new int[1];
+        final int[] errors = new int[1];
+        final PrintStream out = stdout;
+        FileBatch.Run(files, jobs, new FileBatch.Task<FileBatch.Output>() {
+                public FileBatch.Output run(File file) throws IOException {
+                    FileBatch.Output output = new FileBatch.Output();
+                    output.status_ = ListFile(file, finalPrefix, finalPattern, queries, output.out());
+                    return output;
+                }
+            }, new FileBatch.Handler<FileBatch.Output>() {
+                public void done(File file, FileBatch.Output output, Exception error) {
+                    if (error != null) {
+                        stderr.println("Error processing file "+file.getPath()+": "+error.getMessage());
+                        errors[0]++;
+                        return;
+                    }
+                    if (output.hasOutput() && multi && !ResultWriter.Json)
+                        out.println(file.getPath()+":");
+                    output.print(out, null);
+                    if (output.status_ == 0)
+                        found[0]++;
+                }
+            });
+
+        if (multi) {
+            if (ResultWriter.Json)
+                new ResultWriter(stdout).begin("summary").field("files",files.size())
+                    .field("found",found[0]).field("errors",errors[0]).end();
+            else
+                stdout.println(String.format("Processed %d files, found functions in %d files%s",
+                                             files.size(), found[0],
+                                             errors[0]>0 ? String.format(" (%d errors).",errors[0]) : "."));
+        }
+        if (errors[0] > 0)
+            return -5;
+        return found[0] > 0 ? 0 : 1;
+    }
+
+    /// prints the JNI functions of the file whose name starts with prefix and whose signature
+    /// matches sigPattern (either might be null), or if there are queries the ones with those
+    /// full function signatures. returns 0 if any was printed, 1 otherwise.
+    static int ListFile(File file, String prefix, String sigPattern, List<String> queries,
+                        PrintStream out) throws IOException {
+        JNIRenamer renamer = new JNIRenamer(file, file.getPath(), true);
+        try {
+            NativeMethodTable table = renamer.nativeMethods();
+            ResultWriter results = new ResultWriter(out);
+            int found = 0;
+            if (queries.isEmpty()) {
+                List<NativeMethodTable.Entry> entries = table.select(prefix, sigPattern);
+                for (int ii=0; ii<entries.size(); ++ii) {
+                    NativeMethodTable.Entry entry = entries.get(ii);
+                    if (ResultWriter.Json)
+                        results.begin("native").field("file",file.getPath()).field("name",entry.name())
+                            .field("signature",entry.signature()).hexField("addr",entry.addr_)
+                            .hexField("fn",entry.fnPtr_).end();
+                    else
+                        results.hexLine(entry.addr_, entry.functionSig());
+                    ++found;
+                }
+            }
+            for (int ii=0; ii<queries.size(); ++ii) {
+                List<NativeMethodTable.Entry> entries = table.find(queries.get(ii));
+                for (int jj=0; jj<entries.size(); ++jj) {
+                    if (ResultWriter.Json)
+                        results.begin("match").field("file",file.getPath()).field("function",queries.get(ii))
+                            .hexField("addr",entries.get(jj).addr_).field("renamed",false).end();
+                    else
+                        results.hexLine(entries.get(jj).addr_, queries.size() > 1 ? queries.get(ii) : null);
+                    ++found;
+                }
+            }
+            return found > 0 ? 0 : 1;
+        } finally {
+            renamer.close();
+        }
+    }
+
+    /// finds/renames the given functions in all the files the given directory or glob expands to,
+    /// processing up to jobs files in parallel. files are renamed in place.
+    /// if manifest is not null, the results of files unchanged since the run which saved it
+    /// are replayed instead of processing the files again, and it is saved with the new results.
+    /// if dedup is set, only the first of the files with the same content is processed, the
+    /// others are reported as its duplicates and get the same patches when renaming.
+    /// returns 0 if the functions were found/renamed in at least one file and no errors occured.
+    static int RunBatch(String input, final String[] functionSigs, final String[] newNames,
+                        int jobs, final boolean verbose, boolean dedup, final Manifest manifest,
+                        final PrintStream stdout, final PrintStream stderr) {
+        List<File> files;
+        try {
+            files = FileBatch.ExpandFiles(Collections.singletonList(input));
+        } catch (IOException e) {
+            stderr.println("Error listing files of "+input+": "+e.getMessage());
+            return -3;
+        }
+
+        // duplicates are hashed before anything is renamed, while they are still identical:
+        final DuplicateFiles dups = dedup ? DuplicateFiles.Find(files, jobs) : null;
+        List<File> unique = dedup ? dups.unique() : files;
+
+        final int[] found = new int[1];
+        final int[] errors = new int[1];
+        final int[] unchanged = new int[1];
+        final Map<File,Manifest.Entry> fingerprints = new ConcurrentHashMap<File,Manifest.Entry>();
+        // status and applied patches of the processed files, for their duplicates:
+        final Map<File,Integer> statuses = new HashMap<File,Integer>();
+        final Map<File,FilePatcher> patches = new ConcurrentHashMap<File,FilePatcher>();
+        FileBatch.Run(unique, jobs, new FileBatch.Task<FileBatch.Output>() {
+                public FileBatch.Output run(File file) throws IOException {
+                    if (manifest != null) {
+                        Manifest.Entry previous = manifest.lookup(file);
+                        if (previous != null) {
+                            fingerprints.put(file, previous);
+                            return new FileBatch.Output(previous.status_, previous.result_, previous.errors_);
+                        }
+                        // fingerprint before processing, so changes during it are seen next time:
+                        fingerprints.put(file, Manifest.Fingerprint(file));
+                    }
+                    FileBatch.Output output = new FileBatch.Output();
+                    FilePatcher[] applied = new FilePatcher[1];
+                    output.status_ = ProcessFile(file, file, functionSigs, newNames, verbose,
+                                                 output.out(), output.err(), applied);
+                    if (applied[0] != null)
+                        patches.put(file, applied[0]);
+                    return output;
+                }
+            }, new FileBatch.Handler<FileBatch.Output>() {
+                public void done(File file, FileBatch.Output output, Exception error) {
+                    if (error != null) {
+                        stderr.println("Error processing file "+file.getPath()+": "+error.getMessage());
+                        errors[0]++;
+                        return;
+                    }
+                    if (manifest != null) {
+                        Manifest.Entry entry = fingerprints.get(file);
+                        if (entry.result_ != null)
+                            unchanged[0]++;
+                        else {
+                            entry.status_ = output.status_;
+                            entry.result_ = output.outBytes();
+                            entry.errors_ = output.errBytes();
+                        }
+                        try {
+                            manifest.put(file, entry);
+                        } catch (IOException e) {
+                            stderr.println("Error adding "+file.getPath()+" to manifest: "+e.getMessage());
+                        }
+                    }
+                    if (output.hasOutput() && !verbose && !ResultWriter.Json)
+                        stdout.println(file.getPath()+":");
+                    // most files are not expected to have the functions, so unless verbose
+                    // only report errors of files which failed:
+                    output.print(stdout, verbose || output.status_ < 0 ? stderr : null);
+                    statuses.put(file, output.status_);
+                    if (output.status_ == 0)
+                        found[0]++;
+                    else if (output.status_ < 0)
+                        errors[0]++;
+                }
+            });
+
+        if (dedup) {
+            FileBatch.Run(dups.duplicates(), jobs, new FileBatch.Task<FileBatch.Output>() {
+                    public FileBatch.Output run(File file) {
+                        return ProcessDuplicate(file, dups.originalOf(file), dups.isLink(file),
+                                                statuses, patches);
+                    }
+                }, new FileBatch.Handler<FileBatch.Output>() {
+                    public void done(File file, FileBatch.Output output, Exception error) {
+                        if (error != null) {
+                            stderr.println("Error processing file "+file.getPath()+": "+error.getMessage());
+                            errors[0]++;
+                            return;
+                        }
+                        output.print(stdout, stderr);
+                        if (output.status_ == 0)
+                            found[0]++;
+                        else if (output.status_ < 0)
+                            errors[0]++;
+                    }
+                });
+        }
+
+        if (manifest != null) {
+            try {
+                manifest.save();
+            } catch (IOException e) {
+                stderr.println("Error saving manifest: "+e.getMessage());
+                errors[0]++;
+            }
+        }
+
+        if (ResultWriter.Json) {
+            ResultWriter results = new ResultWriter(stdout);
+            results.begin("summary").field("files",files.size())
+                .field(newNames!=null ? "renamed" : "found",found[0]).field("errors",errors[0]);
+            if (manifest != null)
+                results.field("unchanged",unchanged[0]);
+            if (dedup)
+                results.field("duplicates",dups.duplicates().size());
+            results.end();
+        }
+        else
+            stdout.println(String.format("Processed %d files%s%s, %s in %d files%s",
+                                         files.size(), manifest!=null ? String.format(" (%d unchanged)",unchanged[0]) : "",
+                                         dedup ? String.format(" (%d duplicates)",dups.duplicates().size()) : "",
+                                         newNames!=null ? "renamed" : "found",
+                                         found[0], errors[0]>0 ? String.format(" (%d errors).",errors[0]) : "."));
+        if (errors[0] > 0)
+            return -5;
+        return found[0] > 0 ? 0 : 1;
+    }
+
+    /// the result of a duplicate file in a batch is that of its original: the patches which
+    /// renamed the original are applied to it too, unless it is a link to a file already
+    /// renamed. the original has no status if it failed, the duplicate then fails as well.
+    static FileBatch.Output ProcessDuplicate(File file, File original, boolean link,
+                                             Map<File,Integer> statuses, Map<File,FilePatcher> patches) {
+        FileBatch.Output output = new FileBatch.Output();
+        Integer status = statuses.get(original);
+        output.status_ = status==null ? -3 : status;
+        FilePatcher patcher = patches.get(original);
+        boolean written = false;
+        if (patcher != null && !link) {
+            long start = Stats.Start();
+            try {
+                if (FilePatcher.Recover(file))
+                    output.err().println("Warning: rolled back interrupted rename of "+file.getPath());
+                patcher.applyInPlace(file);
+                if (ReaderCache.Shared != null)
+                    ReaderCache.Shared.invalidate(file);
+                written = true;
+                Stats.Stop(Stats.Patch, start);
+            } catch (IOException e) {
+                output.err().println("Error writing output file "+file.getPath()+": "+e.getMessage());
+                output.status_ = -3;
+            }
+        }
+
+        if (ResultWriter.Json) {
+            ResultWriter results = new ResultWriter(output.out());
+            results.begin("duplicate").field("file",file.getPath()).field("of",original.getPath())
+                .field("status",output.status_);
+            if (written)
+                results.field("output",file.getPath());
+            results.end();
+        }
+        else
+            output.out().println(file.getPath()+": duplicate of "+original.getPath()
+                                 +(written ? ", result written" : ""));
+        return output;
+    }
+
+    /// finds (newNames==null) or renames the given functions in the input file, writing
+    /// the result to out. err might be null to skip printing errors. if applied is not
+    /// null, applied[0] is set to the patches written to out.
+    /// returns 0 on success, 1 if not all functions were found and negative on failure.
+    static int ProcessFile(File in, File out, String[] functionSigs, String[] newNames,
+                           boolean verbose, PrintStream stdout, PrintStream stderr,
+                           FilePatcher[] applied) {
+        boolean rename = newNames != null;
+        // in JSON mode stdout only has the records, so the verbose log goes to stderr:
+        PrintStream log = !verbose ? null : ResultWriter.Json ? stderr : stdout;
+
         int status = 0;
+        boolean written = false;
         try {
-            if (verbose)
-                System.out.println(CommandName+" processing file "+in.getPath()+"...");
+            if (log != null)
+                log.println(CommandName+" processing file "+in.getPath()+"...");
 
             if (rename) {
-                copyFile(in,temp);
-
-                JNIRenamer renamer = new JNIRenamer(temp,in.getPath(),false);
+                // the file is only read here, the renames are collected as patches which are
+                // applied in place (through a journal) or to a copy which replaces out atomically:
+                boolean inPlace = out.getCanonicalFile().equals(in.getCanonicalFile());
+                if (inPlace && FilePatcher.Recover(in) && stderr != null)
+                    stderr.println("Warning: rolled back interrupted rename of "+in.getPath());
 
-                int count = renamer.findRenameFunc(functionSig, newName, System.out,
-                                                   verbose ? System.out : null, System.err);
+                JNIRenamer renamer = new JNIRenamer(in,in.getPath(),true);
 
-                renamer.close();
+                int[] counts;
+                try {
+                    counts = renamer.findRenameFuncs(functionSigs, newNames, stdout, log, stderr);
+                } finally {
+                    renamer.close();
+                }
 
-                if (count == 0)
-                    System.err.println("ERROR: Found no matches.");
-                if (count > 1)
-                    System.err.println(String.format("Warning: Found and replaced %d matches?!",count));
+                // all functions must be found for the result to be written:
+                int count = counts==null ? -1 : Integer.MAX_VALUE;
+                for (int ii=0; counts!=null && ii<counts.length; ++ii) {
+                    String which = counts.length > 1 ? " for "+functionSigs[ii] : "";
+                    if (counts[ii] == 0 && stderr != null)
+                        stderr.println("ERROR: Found no matches"+which+".");
+                    if (counts[ii] > 1 && stderr != null)
+                        stderr.println(String.format("Warning: Found and replaced %d matches%s?!",
+                                                     counts[ii],which));
+                    count = Math.min(count,counts[ii]);
+                }
 
                 if (count > 0) {
-                    // move temp to out overwritting if necesarry:
-                    if (out.exists() && !out.delete()) {
-                        System.err.println("Error clearing previous output file "+out.getPath());
+                    long start = Stats.Start();
+                    try {
+                        if (inPlace)
+                            renamer.patches().applyInPlace(out);
+                        else
+                            renamer.patches().applyToCopy(in, out);
+                        if (ReaderCache.Shared != null)
+                            ReaderCache.Shared.invalidate(out);
+                        if (!ResultWriter.Json)
+                            stdout.println("Result written to "+out.getPath());
+                        written = true;
+                        if (applied != null)
+                            applied[0] = renamer.patches();
+                        Stats.Stop(Stats.Patch, start);
+                    } catch (IOException e) {
+                        if (stderr != null)
+                            stderr.println("Error writing output file "+out.getPath()+": "+e.getMessage());
                         status = -3;
                     }
-                    else if ( !temp.renameTo(out) ) {
-                        System.err.println("Error moving temporary file "+temp.getPath()+" to "+out.getPath());
-                        status = -3;
-                    }
-                    System.out.println("Result written to "+out.getPath());
                 }
                 else if (count == 0)
                     status = 1;
@@ -305,13 +934,17 @@ public class JNIRenamer {
             else { // find
                 JNIRenamer renamer = new JNIRenamer(in,in.getPath(),true);
 
-                int count = renamer.findRenameFunc(functionSig, newName, System.out,
-                                                   verbose ? System.out : null, System.err);
+                int count;
+                try {
+                    count = renamer.findRenameFunc(functionSigs[0], null, stdout, log, stderr);
+                } finally {
+                    renamer.close();
+                }
 
-                if (verbose && count == 0)
-                    System.out.println("Found no matches.");
-                if (verbose && count > 1)
-                    System.out.println(String.format("Warning: Found more than one match (%d matches)",count));
+                if (log != null && count == 0)
+                    log.println("Found no matches.");
+                if (log != null && count > 1)
+                    log.println(String.format("Warning: Found more than one match (%d matches)",count));
 
                 if (count > 0)
                     status = 0;
@@ -322,21 +955,41 @@ public class JNIRenamer {
             }
 
         } catch (Exception e) {
-            System.err.println("Error: "+e.getMessage());
+            if (stderr != null)
+                stderr.println("Error: "+e.getMessage());
             status = -3;
-        } finally {
-            if (temp!=null && temp.exists())
-                temp.delete();
         }
 
+        if (ResultWriter.Json) {
+            ResultWriter results = new ResultWriter(stdout);
+            results.begin("file").field("file",in.getPath()).field("status",status);
+            if (written)
+                results.field("output",out.getPath());
+            results.end();
+        }
         return status;
     }
 
-    private static void copyFile(File srcF, File trgF) throws IOException {
-        FileChannel src = new FileInputStream(srcF).getChannel();
-        FileChannel trg = new FileOutputStream(trgF).getChannel();
-        trg.transferFrom(src, 0, src.size());
-        src.close();
-        trg.close();
+    /// reads a rename map file: each line holds a full function signature and the new name
+    /// of the function separated by whitespace. empty lines and lines starting with # are ignored.
+    static void ReadRenameMap(File file, List<String> functionSigs, List<String> newNames) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNum = 0;
+            while ((line = in.readLine()) != null) {
+                ++lineNum;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split("\\s+");
+                if (parts.length != 2)
+                    throw new IOException("invalid line "+lineNum+": "+line);
+                functionSigs.add(parts[0]);
+                newNames.add(parts[1]);
+            }
+        } finally {
+            in.close();
+        }
     }
 }
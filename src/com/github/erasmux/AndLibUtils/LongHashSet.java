@@ -0,0 +1,118 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.util.*;
+
+/// Set of primitive longs using open addressing with linear probing, so neither adding
+/// nor looking up values allocates any objects. Only the functions I needed are here.
+public class LongHashSet {
+
+    private static final long Empty = Long.MIN_VALUE; // marks empty slots
+    private static final int DefaultCapacity = 16;
+
+    private long[] keys_;
+    private int mask_;
+    private int shift_; // 64 - log2(capacity)
+    private int size_ = 0;
+    private boolean hasEmpty_ = false; // whether Empty itself is in the set
+
+    public LongHashSet() {
+        this(DefaultCapacity);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = DefaultCapacity;
+        while (capacity < expectedSize*2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    public boolean isEmpty() {
+        return size_ == 0;
+    }
+
+    public boolean contains(long v) {
+        if (v == Empty)
+            return hasEmpty_;
+        for (int ind = slot(v); ; ind = (ind+1) & mask_) {
+            long key = keys_[ind];
+            if (key == v)
+                return true;
+            if (key == Empty)
+                return false;
+        }
+    }
+
+    /// returns true if the value was not in the set.
+    public boolean add(long v) {
+        if (v == Empty) {
+            if (hasEmpty_)
+                return false;
+            hasEmpty_ = true;
+            ++size_;
+            return true;
+        }
+        int ind = slot(v);
+        while (keys_[ind] != Empty) {
+            if (keys_[ind] == v)
+                return false;
+            ind = (ind+1) & mask_;
+        }
+        keys_[ind] = v;
+        // keep load factor at most 1/2:
+        if (++size_*2 > keys_.length)
+            rehash(keys_.length*2);
+        return true;
+    }
+
+    public void addAll(LongHashSet other) {
+        if (other.hasEmpty_)
+            add(Empty);
+        for (int ii=0; ii<other.keys_.length; ++ii)
+            if (other.keys_[ii] != Empty)
+                add(other.keys_[ii]);
+    }
+
+    /// returns all values in the set in ascending order.
+    public long[] toSortedArray() {
+        long[] values = new long[size_];
+        int count = 0;
+        if (hasEmpty_)
+            values[count++] = Empty;
+        for (int ii=0; ii<keys_.length; ++ii)
+            if (keys_[ii] != Empty)
+                values[count++] = keys_[ii];
+        Arrays.sort(values);
+        return values;
+    }
+
+    private int slot(long v) {
+        // fibonacci hashing, addresses often differ only in their low bits:
+        return (int)((v * 0x9E3779B97F4A7C15L) >>> shift_);
+    }
+
+    private void allocate(int capacity) {
+        keys_ = new long[capacity];
+        Arrays.fill(keys_, Empty);
+        mask_ = capacity-1;
+        shift_ = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void rehash(int capacity) {
+        long[] old = keys_;
+        allocate(capacity);
+        for (int ii=0; ii<old.length; ++ii) {
+            long key = old[ii];
+            if (key != Empty) {
+                int ind = slot(key);
+                while (keys_[ind] != Empty)
+                    ind = (ind+1) & mask_;
+                keys_[ind] = key;
+            }
+        }
+    }
+
+}
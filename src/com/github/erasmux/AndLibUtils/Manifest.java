@@ -0,0 +1,151 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/// Results of a command per file from a previous run, with a fingerprint of each file, so
+/// a rerun only has to process the files which changed since and can replay the rest.
+/// A file is unchanged only if both its FileFingerprint (size, modification and status
+/// change times, inode) and its ElfReader.contentDigest (a hash of the ELF header, the
+/// section header table and the prelink trailer) are the same. A rename in place keeps
+/// the headers and the size of a library, but not its times, and cp -p or touch -r can
+/// restore the modification time but not the status change time. The same fingerprint is
+/// used by MetadataCache, so the two agree on what an unchanged file is.
+/// The manifest belongs to a query (the command and the arguments affecting the results),
+/// a manifest of another query is ignored as a whole.
+public class Manifest {
+
+    private static final int Magic = 0x414C554D; // "ALUM"
+    private static final int Version = 3;
+
+    static public class Entry {
+        public FileFingerprint fingerprint_;
+        public String digest_; // null if the file could not be digested
+        public int status_;
+        public byte[] result_;
+        public byte[] errors_;
+    }
+
+    private File file_;
+    private String query_;
+    private Map<String,Entry> entries_ = new HashMap<String,Entry>();
+    private Map<String,Entry> updated_ = new LinkedHashMap<String,Entry>();
+
+    private Manifest(File file, String query) {
+        file_ = file;
+        query_ = query;
+    }
+
+    /// loads the manifest from file, an empty manifest if the file does not exist, can not
+    /// be read or is of another query.
+    public static Manifest Load(File file, String query) {
+        Manifest manifest = new Manifest(file, query);
+        if (!file.isFile())
+            return manifest;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != Magic || in.readInt() != Version || !in.readUTF().equals(query))
+                    return manifest;
+                int count = in.readInt();
+                for (int ii=0; ii<count; ++ii) {
+                    String path = in.readUTF();
+                    Entry entry = new Entry();
+                    entry.fingerprint_ = FileFingerprint.Read(in);
+                    entry.digest_ = in.readBoolean() ? in.readUTF() : null;
+                    entry.status_ = in.readInt();
+                    entry.result_ = new byte[in.readInt()];
+                    in.readFully(entry.result_);
+                    entry.errors_ = new byte[in.readInt()];
+                    in.readFully(entry.errors_);
+                    manifest.entries_.put(path, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            manifest.entries_.clear(); // corrupt manifest, start over
+        }
+        return manifest;
+    }
+
+    /// the digest of the headers of the file, null if the file can not be read.
+    public static String Digest(File file) {
+        try {
+            ElfReader reader = new ElfReader(file, "r");
+            try {
+                return reader.contentDigest();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /// returns the entry of the file from the previous run if the file did not change since,
+    /// null otherwise. the headers are only read if the fingerprint matches. can be called
+    /// from several threads at once.
+    public Entry lookup(File file) throws IOException {
+        Entry entry = entries_.get(file.getCanonicalPath());
+        if (entry == null || !entry.fingerprint_.matches(file) ||
+            entry.digest_ == null || !entry.digest_.equals(Digest(file)))
+            return null;
+        return entry;
+    }
+
+    /// creates an entry with the current fingerprint and digest of the file, to be filled
+    /// and put.
+    public static Entry Fingerprint(File file) throws IOException {
+        Entry entry = new Entry();
+        entry.fingerprint_ = FileFingerprint.Of(file);
+        entry.digest_ = Digest(file);
+        return entry;
+    }
+
+    /// records the entry of the file for this run, only the files put are saved.
+    public void put(File file, Entry entry) throws IOException {
+        updated_.put(file.getCanonicalPath(), entry);
+    }
+
+    /// writes the entries put in this run, replacing the manifest atomically.
+    public void save() throws IOException {
+        File dir = file_.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("."+file_.getName()+".", ".tmp", dir); // prefix needs 3 characters
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(Magic);
+                out.writeInt(Version);
+                out.writeUTF(query_);
+                out.writeInt(updated_.size());
+                for (Iterator<Map.Entry<String,Entry>> iter = updated_.entrySet().iterator(); iter.hasNext();) {
+                    Map.Entry<String,Entry> item = iter.next();
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    entry.fingerprint_.write(out);
+                    out.writeBoolean(entry.digest_ != null);
+                    if (entry.digest_ != null)
+                        out.writeUTF(entry.digest_);
+                    out.writeInt(entry.status_);
+                    byte[] result = entry.result_ != null ? entry.result_ : new byte[0];
+                    out.writeInt(result.length);
+                    out.write(result);
+                    byte[] errors = entry.errors_ != null ? entry.errors_ : new byte[0];
+                    out.writeInt(errors.length);
+                    out.write(errors);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file_.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } finally {
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+}
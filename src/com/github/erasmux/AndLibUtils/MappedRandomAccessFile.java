@@ -0,0 +1,170 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/// RandomAccessData implementation which memory maps the whole file, so reads and writes
+/// access the mapped memory directly instead of issuing a system call for every buffer.
+/// The file size is fixed when it is opened, writes can not extend the file and files
+/// larger than 2GB can not be mapped.
+public class MappedRandomAccessFile implements RandomAccessData {
+
+    private RandomAccessFile raf_;
+    private FileChannel channel_;
+    private MappedByteBuffer buf_;
+    private boolean writable_;
+
+    public MappedRandomAccessFile(File file, String mode) throws IOException, FileNotFoundException {
+        raf_ = new RandomAccessFile(file, mode);
+        try {
+            channel_ = raf_.getChannel();
+            long size = channel_.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large to map: "+file.getPath());
+            writable_ = !mode.equals("r");
+            buf_ = channel_.map(writable_ ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                                0, size);
+            buf_.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            raf_.close();
+            throw e;
+        }
+    }
+
+    public MappedRandomAccessFile(String file, String mode) throws IOException, FileNotFoundException {
+        this(new File(file), mode);
+    }
+
+    public byte readByte() throws IOException {
+        try {
+            return buf_.get();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public int readUnsignedShort() throws IOException {
+        try {
+            return buf_.getShort() & 0xFFFF;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    public long readUnsignedInt() throws IOException {
+        try {
+            return buf_.getInt() & 0xFFFFFFFFL;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        try {
+            buf_.get(b, off, len);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    public void readFully(ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
+        if (len > buf_.remaining())
+            throw new EOFException();
+        ByteBuffer src = buf_.duplicate();
+        src.limit(src.position()+len);
+        dst.put(src);
+        buf_.position(buf_.position()+len);
+    }
+
+    public void readUnsignedInts(int[] dst, int off, int len) throws IOException {
+        if (4L*len > buf_.remaining())
+            throw new EOFException();
+        buf_.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst, off, len);
+        buf_.position(buf_.position()+4*len);
+    }
+
+    public ByteBuffer slice(long ofs, int len) throws IOException {
+        if (ofs < 0 || ofs+len > buf_.limit())
+            throw new EOFException(String.format("Slice beyond end of mapped file: 0x%08X",ofs+len));
+        ByteBuffer view = buf_.duplicate();
+        view.position((int) ofs);
+        view.limit((int) ofs+len);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void writeByte(byte b) throws IOException {
+        try {
+            buf_.put(b);
+        } catch (BufferOverflowException e) {
+            throw new EOFException("Can not write beyond the end of a mapped file");
+        } catch (ReadOnlyBufferException e) {
+            throw new IOException("File was not opened for writing");
+        }
+    }
+
+    public void writeUnsignedByte(int v) throws IOException {
+        writeByte((byte) v);
+    }
+
+    public void writeUnsignedShort(int v) throws IOException {
+        try {
+            buf_.putShort((short) v);
+        } catch (BufferOverflowException e) {
+            throw new EOFException("Can not write beyond the end of a mapped file");
+        } catch (ReadOnlyBufferException e) {
+            throw new IOException("File was not opened for writing");
+        }
+    }
+
+    public void writeUnsignedInt(long v) throws IOException {
+        try {
+            buf_.putInt((int) v);
+        } catch (BufferOverflowException e) {
+            throw new EOFException("Can not write beyond the end of a mapped file");
+        } catch (ReadOnlyBufferException e) {
+            throw new IOException("File was not opened for writing");
+        }
+    }
+
+    public void skipBytes(int bytes) throws IOException {
+        seek(buf_.position() + (long)bytes);
+    }
+
+    public void seek(long ofs) throws IOException {
+        if (ofs < 0 || ofs > buf_.limit())
+            throw new EOFException(String.format("Seek beyond end of mapped file: 0x%08X",ofs));
+        buf_.position((int) ofs);
+    }
+
+    public long getFilePointer() {
+        return buf_.position();
+    }
+
+    public long length() {
+        return buf_.limit();
+    }
+
+    public void setAccessPattern(int pattern) {
+        // the page cache does the read ahead for mapped files
+    }
+
+    public void flush() throws IOException {
+        if (writable_)
+            buf_.force();
+    }
+
+    public void close() throws IOException {
+        flush();
+        // the mapping itself is released only once the buffer is garbage collected:
+        buf_ = null;
+        channel_.close();
+        raf_.close();
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/// Persistent cache of the metadata parsed from libraries: the prelinked address, the
+/// section headers and the offsets strings were found at in sections, so repeated queries
+/// against unchanged files do not have to reparse or rescan them.
+/// Each file has one entry (named by a hash of its canonical path) which is only used if
+/// the FileFingerprint (size, modification and status change times, inode) and the
+/// ElfReader.contentDigest of the file still match. The fingerprint is a single stat, so a
+/// hit does not read the sections, and it changes with any write to the file, including
+/// one which keeps the size and restores the modification time.
+/// Least recently used entries are evicted once there are more than MaxEntries of them,
+/// and entries not used for MaxAgeDays are dropped.
+public class MetadataCache {
+
+    public static boolean Enabled = true;
+    public static int MaxEntries = 4096;
+    public static int MaxAgeDays = 30;
+
+    private static final int Magic = 0x414C5543; // "ALUC"
+    private static final int Version = 3;
+
+    private static MetadataCache default_ = null;
+
+    private File dir_;
+
+    static public class Entry {
+        public FileFingerprint fingerprint_;
+        public String digest_;
+        public long prelinked_ = -1;
+        public byte[] sections_; // as written by ElfReader.saveSections
+        /// per section, offsets its strings were found at:
+        public Map<String,Map<String,List<StringMatcher.Match>>> strings_ =
+            new HashMap<String,Map<String,List<StringMatcher.Match>>>();
+        private boolean modified_ = false;
+
+        /// the known matches of str in section, null if unknown.
+        public List<StringMatcher.Match> matches(String section, String str) {
+            Map<String,List<StringMatcher.Match>> strings = strings_.get(section);
+            return strings==null ? null : strings.get(str);
+        }
+
+        public void setMatches(String section, String str, List<StringMatcher.Match> matches) {
+            Map<String,List<StringMatcher.Match>> strings = strings_.get(section);
+            if (strings == null) {
+                strings = new HashMap<String,List<StringMatcher.Match>>();
+                strings_.put(section, strings);
+            }
+            strings.put(str, new ArrayList<StringMatcher.Match>(matches));
+            modified_ = true;
+        }
+
+        public boolean modified() {
+            return modified_;
+        }
+    }
+
+    /// the cache in the default location ($XDG_CACHE_HOME/andlibutils or ~/.cache/andlibutils),
+    /// null if caching was disabled (--no-cache).
+    public static synchronized MetadataCache Default() {
+        if (!Enabled)
+            return null;
+        if (default_ == null) {
+            String base = System.getenv("XDG_CACHE_HOME");
+            File dir = base != null && base.length() > 0 ? new File(base, "andlibutils")
+                : new File(new File(System.getProperty("user.home"), ".cache"), "andlibutils");
+            default_ = new MetadataCache(dir);
+        }
+        return default_;
+    }
+
+    public MetadataCache(File dir) {
+        dir_ = dir;
+    }
+
+    /// returns the cached entry of the file, null if there is none or it is out of date.
+    public Entry lookup(File file, String digest) {
+        File entryFile = entryFile(file);
+        if (entryFile == null || !entryFile.isFile())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)));
+            try {
+                if (in.readInt() != Magic || in.readInt() != Version)
+                    return null;
+                Entry entry = new Entry();
+                if (!in.readUTF().equals(file.getCanonicalPath()))
+                    return null; // another file with the same hash
+                entry.fingerprint_ = FileFingerprint.Read(in);
+                entry.digest_ = in.readUTF();
+                if (!entry.fingerprint_.matches(file) || !entry.digest_.equals(digest))
+                    return null;
+                entry.prelinked_ = in.readLong();
+                entry.sections_ = new byte[in.readInt()];
+                in.readFully(entry.sections_);
+                int sections = in.readInt();
+                for (int ii=0; ii<sections; ++ii) {
+                    String section = in.readUTF();
+                    int strings = in.readInt();
+                    for (int jj=0; jj<strings; ++jj) {
+                        String str = in.readUTF();
+                        int count = in.readInt();
+                        List<StringMatcher.Match> matches = new ArrayList<StringMatcher.Match>(count);
+                        for (int kk=0; kk<count; ++kk) {
+                            long ofs = in.readLong();
+                            matches.add(new StringMatcher.Match(ofs, in.readBoolean()));
+                        }
+                        entry.setMatches(section, str, matches);
+                    }
+                }
+                entry.modified_ = false;
+                entryFile.setLastModified(System.currentTimeMillis()); // for LRU eviction
+                return entry;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null; // corrupt or concurrently replaced entry, just treat as a miss
+        }
+    }
+
+    /// creates a new entry for the file, to be filled and stored.
+    public Entry create(File file, String digest) throws IOException {
+        Entry entry = new Entry();
+        entry.fingerprint_ = FileFingerprint.Of(file);
+        entry.digest_ = digest;
+        entry.modified_ = true;
+        return entry;
+    }
+
+    /// writes the entry of the file. failures are ignored as the cache is only an optimization.
+    public void store(File file, Entry entry) {
+        File entryFile = entryFile(file);
+        if (entryFile == null)
+            return;
+        File temp = null;
+        try {
+            if (!dir_.isDirectory() && !dir_.mkdirs())
+                return;
+            boolean added = !entryFile.exists();
+            // write to a temporary file first so concurrent readers never see partial entries:
+            temp = File.createTempFile(entryFile.getName(), ".tmp", dir_);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(Magic);
+                out.writeInt(Version);
+                out.writeUTF(file.getCanonicalPath());
+                entry.fingerprint_.write(out);
+                out.writeUTF(entry.digest_);
+                out.writeLong(entry.prelinked_);
+                byte[] sections = entry.sections_ != null ? entry.sections_ : new byte[0];
+                out.writeInt(sections.length);
+                out.write(sections);
+                out.writeInt(entry.strings_.size());
+                for (Iterator<Map.Entry<String,Map<String,List<StringMatcher.Match>>>> iter =
+                         entry.strings_.entrySet().iterator(); iter.hasNext();) {
+                    Map.Entry<String,Map<String,List<StringMatcher.Match>>> section = iter.next();
+                    out.writeUTF(section.getKey());
+                    out.writeInt(section.getValue().size());
+                    for (Iterator<Map.Entry<String,List<StringMatcher.Match>>> strIter =
+                             section.getValue().entrySet().iterator(); strIter.hasNext();) {
+                        Map.Entry<String,List<StringMatcher.Match>> str = strIter.next();
+                        out.writeUTF(str.getKey());
+                        out.writeInt(str.getValue().size());
+                        for (int ii=0; ii<str.getValue().size(); ++ii) {
+                            out.writeLong(str.getValue().get(ii).ofs_);
+                            out.writeBoolean(str.getValue().get(ii).exact_);
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), entryFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            entry.modified_ = false;
+            if (added)
+                evict();
+        } catch (IOException e) {
+            // ignore, the cache is just an optimization
+        } finally {
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    /// removes entries not used for MaxAgeDays, and the least recently used entries
+    /// if there are more than MaxEntries.
+    public void evict() {
+        File[] entries = dir_.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".entry");
+                }
+            });
+        if (entries == null)
+            return;
+        long oldest = System.currentTimeMillis() - MaxAgeDays*24L*3600*1000;
+        final Map<File,Long> used = new HashMap<File,Long>();
+        for (int ii=0; ii<entries.length; ++ii)
+            used.put(entries[ii], entries[ii].lastModified());
+        Arrays.sort(entries, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    return used.get(f1).compareTo(used.get(f2));
+                }
+            });
+        // evict down to 90% so we do not have to evict again on the next store:
+        int remove = entries.length > MaxEntries ? entries.length - MaxEntries*9/10 : 0;
+        for (int ii=0; ii<entries.length; ++ii) {
+            if (ii < remove || used.get(entries[ii]) < oldest)
+                entries[ii].delete();
+        }
+    }
+
+    /// the file of the entry of file: named by a 64 bit FNV-1a hash of its canonical path
+    /// (entries keep the path, so colliding files just miss).
+    private File entryFile(File file) {
+        try {
+            byte[] path = file.getCanonicalPath().getBytes("UTF-8");
+            long hash = 0xcbf29ce484222325L;
+            for (int ii=0; ii<path.length; ++ii)
+                hash = (hash ^ (path[ii] & 0xFF)) * 0x100000001b3L;
+            return new File(dir_, String.format("%016x.entry", hash));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}
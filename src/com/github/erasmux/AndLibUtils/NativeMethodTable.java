@@ -0,0 +1,264 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/// Table of all the JNINativeMethod {name, signature, fnPtr} entries found in a library.
+/// The data sections are scanned once (in chunks, see SectionScanner) for word triples whose
+/// first two words point to .rodata strings which look like a java method name and a JNI
+/// method signature, like JNIRenamer finds them. Words filled in by RELA relative
+/// relocations are taken from the addends of the relocations. The strings are only decoded
+/// when an entry's name or signature is first asked for, once per string (signatures are
+/// shared by many entries), and find answers any number of queries from an index built on
+/// first use.
+public class NativeMethodTable {
+
+    /// sections JNINativeMethod arrays might be placed in.
+    public static String[] DataSections = { ".data", ".data.rel.ro", ".data.rel.ro.local" };
+
+    static public class Entry {
+        public String section_; // section the entry was found in
+        public long addr_;      // address of the entry
+        public long nameAddr_;
+        public long sigAddr_;
+        public long fnPtr_;     // 0 if filled by a symbol relocation
+        private StringCache strings_;
+        private int nameOfs_;   // offsets of the strings in .rodata
+        private int sigOfs_;
+
+        public String name() {
+            return strings_.get(nameOfs_);
+        }
+
+        public String signature() {
+            return strings_.get(sigOfs_);
+        }
+
+        /// full function signature, as given to JNI find/rename.
+        public String functionSig() {
+            return name()+signature();
+        }
+    }
+
+    /// the null terminated strings of a section by offset, decoded when first asked for.
+    static public class StringCache {
+        private ByteBuffer data_;
+        private Map<Integer,String> strings_ = new HashMap<Integer,String>();
+
+        public StringCache(ByteBuffer data) {
+            data_ = data;
+        }
+
+        public synchronized String get(int ofs) {
+            String str = strings_.get(ofs);
+            if (str == null) {
+                StringBuilder builder = new StringBuilder();
+                for (int ii=ofs; ii<data_.limit() && data_.get(ii) != 0; ++ii)
+                    builder.append((char)(data_.get(ii) & 0xFF));
+                str = builder.toString();
+                strings_.put(ofs, str);
+            }
+            return str;
+        }
+
+        /// number of strings decoded so far.
+        public synchronized int size() {
+            return strings_.size();
+        }
+    }
+
+    private List<Entry> entries_ = new ArrayList<Entry>();
+    private StringCache strings_;
+    private Map<String,List<Entry>> bySig_ = null;
+
+    /// the table of the library the reader reads, prelinked is its prelinked address
+    /// (negative if it is not prelinked).
+    public NativeMethodTable(ElfReader reader, long prelinked) throws IOException {
+        final ByteBuffer rodata = reader.sectionSlice(".rodata");
+        if (rodata == null)
+            return;
+        strings_ = new StringCache(rodata);
+        final long rodataBaseAddr = reader.sectionAddr(".rodata") + (prelinked >= 0 ? prelinked : 0);
+        int wordSize = reader.wordSize();
+        RelocationIndex relocs = reader.relocations();
+        long base = prelinked >= 0 ? prelinked : 0;
+
+        // a pair matches if it points to a method name and a signature:
+        SectionScanner.PairMatcher matcher = new SectionScanner.PairMatcher() {
+                public int match(long first, long second) {
+                    long nameOfs = first - rodataBaseAddr;
+                    long sigOfs = second - rodataBaseAddr;
+                    if (nameOfs < 0 || nameOfs >= rodata.limit() || sigOfs < 0 || sigOfs >= rodata.limit())
+                        return -1;
+                    return IsMethodName(rodata, (int) nameOfs) && IsMethodSignature(rodata, (int) sigOfs) ? 0 : -1;
+                }
+            };
+
+        long start = Stats.Start();
+        for (int ii=0; ii<DataSections.length; ++ii) {
+            String section = DataSections[ii];
+            ByteBuffer data = reader.sectionSlice(section);
+            if (data == null)
+                continue;
+            long dataAddr = reader.sectionAddr(section);
+            long words = data.limit()/wordSize;
+            long[] found = SectionScanner.ScanWordPairs(data, wordSize, dataAddr, relocs, base, matcher);
+            long next = 0; // entries do not overlap
+            for (int jj=0; jj<found.length; jj+=2) {
+                long word = found[jj];
+                if (word < next || word+2 >= words)
+                    continue;
+                // fnPtr is not checked: when it is filled by a symbol relocation (a function
+                // which is imported or can be preempted) it is 0 in the file.
+                Entry entry = new Entry();
+                entry.section_ = section;
+                entry.addr_ = dataAddr + word*wordSize;
+                entry.nameAddr_ = WordAt(data, wordSize, word, entry.addr_, relocs, base);
+                entry.sigAddr_ = WordAt(data, wordSize, word+1, entry.addr_+wordSize, relocs, base);
+                entry.fnPtr_ = WordAt(data, wordSize, word+2, entry.addr_+2*wordSize, relocs, base);
+                entry.strings_ = strings_;
+                entry.nameOfs_ = (int) (entry.nameAddr_ - rodataBaseAddr);
+                entry.sigOfs_ = (int) (entry.sigAddr_ - rodataBaseAddr);
+                entries_.add(entry);
+                next = word+3;
+            }
+        }
+        Stats.Stop(Stats.DataScan, start);
+    }
+
+    /// the word with the given index of the section data, with its relocation applied.
+    private static long WordAt(ByteBuffer data, int wordSize, long word, long addr,
+                               RelocationIndex relocs, long base) {
+        int reloc = relocs.rela() ? relocs.find(addr) : -1;
+        if (reloc >= 0)
+            return relocs.addend(reloc)+base;
+        return wordSize == 8 ? data.getLong((int) word*8) : data.getInt((int) word*4) & 0xFFFFFFFFL;
+    }
+
+    /// all entries, in order of section and address.
+    public List<Entry> entries() {
+        return entries_;
+    }
+
+    public int size() {
+        return entries_.size();
+    }
+
+    /// the strings of .rodata decoded so far, null if the library has no .rodata.
+    public StringCache strings() {
+        return strings_;
+    }
+
+    /// returns the entries with the given full function signature.
+    public synchronized List<Entry> find(String functionSig) {
+        if (bySig_ == null) {
+            bySig_ = new HashMap<String,List<Entry>>();
+            for (int ii=0; ii<entries_.size(); ++ii) {
+                Entry entry = entries_.get(ii);
+                List<Entry> same = bySig_.get(entry.functionSig());
+                if (same == null) {
+                    same = new ArrayList<Entry>(1);
+                    bySig_.put(entry.functionSig(), same);
+                }
+                same.add(entry);
+            }
+        }
+        List<Entry> found = bySig_.get(functionSig);
+        return found != null ? found : Collections.<Entry>emptyList();
+    }
+
+    /// returns the entries whose name starts with prefix (any if null) and whose signature
+    /// matches the glob pattern sigPattern (any if null), where * matches any characters
+    /// and ? a single one.
+    public List<Entry> select(String prefix, String sigPattern) {
+        Pattern pattern = sigPattern==null ? null : GlobPattern(sigPattern);
+        List<Entry> selected = new ArrayList<Entry>();
+        for (int ii=0; ii<entries_.size(); ++ii) {
+            Entry entry = entries_.get(ii);
+            if ((prefix == null || entry.name().startsWith(prefix)) &&
+                (pattern == null || pattern.matcher(entry.signature()).matches()))
+                selected.add(entry);
+        }
+        return selected;
+    }
+
+    /// a regular expression for a glob pattern, everything but * and ? is literal (JNI
+    /// signatures are full of characters regular expressions treat specially).
+    static Pattern GlobPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        for (int ii=0; ii<=glob.length(); ++ii) {
+            char ch = ii<glob.length() ? glob.charAt(ii) : '*';
+            if (ch != '*' && ch != '?')
+                continue;
+            if (ii > literal)
+                regex.append(Pattern.quote(glob.substring(literal, ii)));
+            if (ii < glob.length())
+                regex.append(ch == '*' ? ".*" : ".");
+            literal = ii+1;
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /// checks for a null terminated java identifier.
+    static boolean IsMethodName(ByteBuffer buf, int ofs) {
+        int ii = ofs;
+        for (; ii<buf.limit(); ++ii) {
+            int ch = buf.get(ii) & 0xFF;
+            if (ch == 0)
+                break;
+            boolean letter = (ch>='a' && ch<='z') || (ch>='A' && ch<='Z') || ch=='_' || ch=='$';
+            if (!letter && (ii==ofs || ch<'0' || ch>'9'))
+                return false;
+        }
+        return ii > ofs && ii < buf.limit();
+    }
+
+    /// checks for a null terminated JNI method signature, i.e. "(<types>)<type or V>".
+    static boolean IsMethodSignature(ByteBuffer buf, int ofs) {
+        if (ofs >= buf.limit() || buf.get(ofs) != '(')
+            return false;
+        int ii = ofs+1;
+        while (ii < buf.limit() && buf.get(ii) != ')') {
+            ii = SkipType(buf, ii);
+            if (ii < 0)
+                return false;
+        }
+        if (ii >= buf.limit())
+            return false;
+        ++ii; // skip ')'
+        if (ii < buf.limit() && buf.get(ii) == 'V')
+            ++ii;
+        else
+            ii = SkipType(buf, ii);
+        return ii >= 0 && ii < buf.limit() && buf.get(ii) == 0;
+    }
+
+    /// returns index after the JNI type starting at ofs, -1 if it is not a valid type.
+    private static int SkipType(ByteBuffer buf, int ofs) {
+        while (ofs < buf.limit() && buf.get(ofs) == '[')
+            ++ofs;
+        if (ofs >= buf.limit())
+            return -1;
+        switch (buf.get(ofs)) {
+        case 'Z': case 'B': case 'C': case 'S': case 'I': case 'J': case 'F': case 'D':
+            return ofs+1;
+        case 'L':
+            int start = ++ofs;
+            while (ofs < buf.limit()) {
+                byte ch = buf.get(ofs);
+                if (ch == ';')
+                    return ofs > start ? ofs+1 : -1;
+                if (ch == 0 || ch == '(' || ch == ')' || ch == '[')
+                    return -1;
+                ++ofs;
+            }
+            return -1;
+        default:
+            return -1;
+        }
+    }
+
+}
@@ -8,10 +8,25 @@ public class Prelinked {
 
     private File file_;
     private long addr_;
+    private long[] extent_ = null;
+
+    /// size of the prelink trailer at the end of prelinked files.
+    public static final int TrailerSize = 8;
 
     public Prelinked(File file) throws IOException, FileNotFoundException {
         file_ = file;
-        addr_ = GetPrelinkAddr(new RandomAccessFile(file_, "r"));
+        RandomAccessFile in = new RandomAccessFile(file_, "r");
+        try {
+            addr_ = GetPrelinkAddr(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /// for a file whose trailer was already read, trailer is null if the file is too short.
+    public Prelinked(File file, byte[] trailer) {
+        file_ = file;
+        addr_ = trailer==null ? -1 : ParseTrailer(trailer);
     }
 
     public File file() {
@@ -31,24 +46,76 @@ public class Prelinked {
         return addr_;
     }
 
+    /// reads the range of addresses {start, end} the file occupies when loaded at its
+    /// prelinked address from its program headers. the range is null if the file is not
+    /// prelinked or has no loadable segments.
+    public void readExtent() throws IOException {
+        extent_ = null;
+        if (!prelinked())
+            return;
+        ElfReader reader = new ElfReader(file_, "r");
+        try {
+            reader.readProgramHeaders();
+            long[] extent = reader.loadExtent();
+            if (extent != null)
+                extent_ = new long[] { addr_+extent[0], addr_+extent[1] };
+        } finally {
+            reader.close();
+        }
+    }
+
+    /// the prelinked address and extent, as stored in a Manifest.
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(addr_);
+        out.writeBoolean(extent_ != null);
+        if (extent_ != null) {
+            out.writeLong(extent_[0]);
+            out.writeLong(extent_[1]);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /// restores a file's prelinked address and extent written by encode.
+    public static Prelinked Decode(File file, byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Prelinked prelink = new Prelinked(file, null);
+        prelink.addr_ = in.readLong();
+        if (in.readBoolean())
+            prelink.extent_ = new long[] { in.readLong(), in.readLong() };
+        return prelink;
+    }
+
+    /// range read by readExtent, null if unknown.
+    public long[] extent() {
+        return extent_;
+    }
+
     /// returns prelinked address of the given input or -1 if not prelinked.
     static public long GetPrelinkAddr(RandomAccessFile in) throws IOException {
         long length = in.length();
-        if (length < 8)
+        if (length < TrailerSize)
             return -1;
 
-        in.seek(length-8);
-        // read little unendian unsigned int:
-        long addr = in.readUnsignedByte() |
-            (in.readUnsignedByte() << 8) |
-            (in.readUnsignedByte() << 16) |
-            ((long)in.readUnsignedByte() << 24);
-        
+        in.seek(length-TrailerSize);
+        byte[] trailer = new byte[TrailerSize];
+        in.readFully(trailer);
+        return ParseTrailer(trailer);
+    }
+
+    /// returns prelinked address given the last TrailerSize bytes of a file or -1 if not prelinked.
+    static public long ParseTrailer(byte[] trailer) {
         // check magic:
-        if (in.readByte()!='P' || in.readByte()!='R' || in.readByte()!='E' || in.readByte()!=' ')
+        if (trailer[4]!='P' || trailer[5]!='R' || trailer[6]!='E' || trailer[7]!=' ')
             return -1;
 
-        return addr;
+        // read little unendian unsigned int:
+        return (trailer[0] & 0xFF) |
+            ((trailer[1] & 0xFF) << 8) |
+            ((trailer[2] & 0xFF) << 16) |
+            ((long)(trailer[3] & 0xFF) << 24);
     }
 
     // Functions for Command line interface:
@@ -56,11 +123,11 @@ public class Prelinked {
     public static String CommandName = "prelink";
 
     public static String Usage() {
-        return CommandName+" map [-o outfile] <files>";
+        return CommandName+" map [-o outfile] [-j N] [-a] [-d] [-i manifest] <files>";
     }
 
-    static void PrintUsage() {
-        System.out.println("usage: "+CommandLine.Command+" "+Usage());
+    static void PrintUsage(PrintStream stdout) {
+        stdout.println("usage: "+CommandLine.Command+" "+Usage());
     }
 
     public static boolean CheckArgs(String args[]) {
@@ -69,44 +136,86 @@ public class Prelinked {
             args[1].equals("map");
     }
 
-    public static boolean Help(String args[]) {
+    public static boolean Help(String args[], PrintStream stdout) {
         if (args.length >= 2 && args[1].equals(CommandName)) {
-            PrintUsage();
-            System.out.println();
-            System.out.println("Checks the prelinked address of the specificed files.");
-            System.out.println(" -o outfile : logs output to given file");
+            PrintUsage(stdout);
+            stdout.println();
+            stdout.println("Checks the prelinked address of the specificed files.");
+            stdout.println(" -o outfile : logs output to given file");
+            stdout.println(" -j N       : use N threads to complete the reads (default is number of cores)");
+            stdout.println(" -a         : also analyzes the address ranges the prelinked files are loaded to,");
+            stdout.println("              reporting overlapping files and the free gaps between them");
+            stdout.println(" -d         : check byte-identical files once, listing the copies as duplicates of");
+            stdout.println("              the first one instead of in the map (and its analysis)");
+            stdout.println(" -i manifest: keep the results of each file in the given file, and only check");
+            stdout.println("              the files which changed since the previous run using it");
+            stdout.println(" <files> can also be directories (all "+FileBatch.DefaultGlob+" files under them are checked)");
+            stdout.println(" or glob patterns such as \"system/lib/*.so\"");
             return true;
         }
         return false;
     }
 
-    public static int Run(String args[]) {
+    public static int Run(String args[], PrintStream stdout, PrintStream stderr) {
         if (args.length < 3 || !CheckArgs(args)) {
-            PrintUsage();
+            PrintUsage(stdout);
             return -1;
         }
 
         String outfile = null;
-        List<String> files = new LinkedList<String>();
+        String manifestFile = null;
+        boolean analyze = false;
+        boolean dedup = false;
+        int jobs = FileBatch.DefaultJobs();
+        List<String> inputs = new LinkedList<String>();
         for(int ii=2; ii<args.length; ++ii) {
             if (args[ii].equals("-o") && (ii+1)<args.length) {
                 outfile = args[++ii];
             }
-            else files.add(args[ii]);
+            else if (args[ii].equals("-j") && (ii+1)<args.length) {
+                jobs = FileBatch.ParseJobs(args[++ii]);
+                if (jobs < 0) {
+                    stderr.println("Error: invalid number of jobs: "+args[ii]);
+                    return -1;
+                }
+            }
+            else if (args[ii].equals("-i") && (ii+1)<args.length) {
+                manifestFile = args[++ii];
+            }
+            else if (args[ii].equals("-a"))
+                analyze = true;
+            else if (args[ii].equals("-d"))
+                dedup = true;
+            else inputs.add(args[ii]);
+        }
+
+        List<File> files;
+        try {
+            files = FileBatch.ExpandFiles(inputs);
+        } catch (IOException e) {
+            stderr.println("Error listing files: "+e.getMessage());
+            return -3;
+        }
+        int count = files.size();
+        // copies of the same library in several trees are only checked once:
+        DuplicateFiles dups = null;
+        if (dedup) {
+            dups = DuplicateFiles.Find(files, jobs);
+            files = dups.unique();
         }
         
-        PrintStream out = System.out;
+        PrintStream out = stdout;
         if (outfile != null) 
             try {
                 out = new PrintStream(new File(outfile));
             } catch (IOException e) {
-                System.err.println("Error opening output file: "+e.getMessage());
+                stderr.println("Error opening output file: "+e.getMessage());
                 return -3;
             }
 
 
         // sort files in order of their prelinked address:
-        SortedSet<Prelinked> plmap = new TreeSet<Prelinked>(new Comparator<Prelinked>() {
+        final SortedSet<Prelinked> plmap = new TreeSet<Prelinked>(new Comparator<Prelinked>() {
                 public int compare(Prelinked pl1, Prelinked pl2) {
                     if (pl1.prelinked() && pl2.prelinked()) {
                         if (pl1.address() < pl2.address())
@@ -118,34 +227,213 @@ public class Prelinked {
                         return -1;
                     else if (!pl1.prelinked() && pl2.prelinked()) 
                         return 1;
-                    // otherwise fallback to order by filename:
-                    return pl1.filename().compareTo(pl2.filename());
+                    // otherwise fallback to order by filename (and path for equal names):
+                    int cmp = pl1.filename().compareTo(pl2.filename());
+                    return cmp != 0 ? cmp : pl1.file().getPath().compareTo(pl2.file().getPath());
+                }
+            });
+        // with a manifest only the files which changed since the previous run are checked:
+        final int[] errors = new int[1];
+        Manifest manifest = null;
+        List<File> changed = files;
+        final Map<File,Manifest.Entry> fingerprints = new HashMap<File,Manifest.Entry>();
+        if (manifestFile != null) {
+            final Manifest previous = Manifest.Load(new File(manifestFile), CommandName+" map"+(analyze ? " -a" : ""));
+            final List<File> changedFiles = new ArrayList<File>();
+            // looking a file up reads its headers, so it is done in parallel. the changed files
+            // are fingerprinted before checking, so changes during it are seen next time:
+            FileBatch.Run(files, jobs, new FileBatch.Task<Manifest.Entry>() {
+                    public Manifest.Entry run(File file) throws IOException {
+                        Manifest.Entry entry = previous.lookup(file);
+                        return entry != null ? entry : Manifest.Fingerprint(file);
+                    }
+                }, new FileBatch.Handler<Manifest.Entry>() {
+                    public void done(File file, Manifest.Entry entry, Exception error) {
+                        try {
+                            if (entry != null && entry.result_ != null) {
+                                plmap.add(Decode(file, entry.result_));
+                                previous.put(file, entry);
+                                return;
+                            }
+                        } catch (IOException e) {
+                            // checked again below
+                        }
+                        changedFiles.add(file);
+                        if (entry != null)
+                            fingerprints.put(file, entry);
+                    }
+                });
+            manifest = previous;
+            changed = changedFiles;
+        }
+        int unchanged = files.size() - changed.size();
+
+        // check actual prelinked status of each file, reading just the trailers of many files
+        // at once. in JSON mode without analysis the records are streamed in order of the files:
+        final ResultWriter results = new ResultWriter(out);
+        final boolean stream = ResultWriter.Json && !analyze && manifest == null;
+        final List<Prelinked> checked = new ArrayList<Prelinked>();
+        long start = Stats.Start();
+        new TrailerReader(TrailerSize, jobs).readAll(changed, new FileBatch.Handler<byte[]>() {
+                public void done(File file, byte[] trailer, Exception error) {
+                    if (error != null) {
+                        stderr.println("Error processing file "+file.getPath()+": "+error.getMessage());
+                        errors[0]++;
+                    }
+                    else if (stream)
+                        new Prelinked(file, trailer).write(results);
+                    else
+                        checked.add(new Prelinked(file, trailer));
                 }
             });
-        // check actual prelinked status of each file:
-        int count=0, errors=0;
-        for (Iterator<String> iter = files.iterator(); iter.hasNext(); ++count) {
-            String fname = iter.next();
+        Stats.Stop(Stats.Trailers, start);
+
+        if (analyze) {
+            start = Stats.Start();
+            errors[0] += ReadExtents(checked, jobs, stderr);
+            Stats.Stop(Stats.Extents, start);
+        }
+        plmap.addAll(checked);
+
+        if (manifest != null) {
             try {
-                plmap.add(new Prelinked(new File(fname)));
-            } catch (Exception e) {
-                System.err.println("Error processing file "+fname+": "+e.getMessage());
-                errors++;
+                for (int ii=0; ii<checked.size(); ++ii) {
+                    Prelinked prelink = checked.get(ii);
+                    Manifest.Entry entry = fingerprints.get(prelink.file());
+                    // files which could not be fingerprinted or whose extent could not be
+                    // read are checked again next time:
+                    if (entry == null || (analyze && prelink.prelinked() && prelink.extent() == null))
+                        continue;
+                    entry.result_ = prelink.encode();
+                    manifest.put(prelink.file(), entry);
+                }
+                manifest.save();
+            } catch (IOException e) {
+                stderr.println("Error saving manifest: "+e.getMessage());
+                errors[0]++;
             }
         }
 
         // print results:
         for (Iterator<Prelinked> iter = plmap.iterator(); iter.hasNext();) {
             Prelinked prelink = iter.next();
-            if (prelink.prelinked())
+            if (ResultWriter.Json)
+                prelink.write(results);
+            else if (prelink.prelinked() && prelink.extent() != null)
+                out.println("prelinked @ 0x"+String.format("%8X",prelink.address())+": "+prelink.filename()
+                            +String.format(" [0x%08X-0x%08X)",prelink.extent()[0],prelink.extent()[1]));
+            else if (prelink.prelinked())
                 out.println("prelinked @ 0x"+String.format("%8X",prelink.address())+": "+prelink.filename());
             else
                 out.println("not prelinked:          "+prelink.filename());
         }
+        for (int ii=0; dups!=null && ii<dups.duplicates().size(); ++ii) {
+            File dup = dups.duplicates().get(ii);
+            if (ResultWriter.Json)
+                results.begin("duplicate").field("file",dup.getPath()).field("of",dups.originalOf(dup).getPath()).end();
+            else
+                out.println("duplicate:              "+dup.getPath()+" of "+dups.originalOf(dup).getPath());
+        }
+
+        if (analyze) {
+            start = Stats.Start();
+            PrintAnalysis(plmap, results);
+            Stats.Stop(Stats.Analysis, start);
+        }
+
+        if (out != stdout)
+            out.close();
+        if (ResultWriter.Json) {
+            ResultWriter summary = new ResultWriter(stdout);
+            summary.begin("summary").field("files",count).field("errors",errors[0]);
+            if (manifest != null)
+                summary.field("unchanged",unchanged);
+            if (dups != null)
+                summary.field("duplicates",dups.duplicates().size());
+            summary.end();
+        }
+        else
+            stdout.println("Processed "+Integer.toString(count)+" files"
+                           +(manifest != null ? String.format(" (%d unchanged)",unchanged) : "")
+                           +(dups != null ? String.format(" (%d duplicates)",dups.duplicates().size()) : "")
+                           +(errors[0]>0 ? String.format(" (%d errors).",errors[0]) : "."));
+        return errors[0]>0 ? -5 : 0;
+    }
+
+    /// reads the extents of the prelinked files in parallel, returns the number of errors.
+    static int ReadExtents(Collection<Prelinked> prelinks, int jobs, final PrintStream stderr) {
+        List<File> files = new ArrayList<File>();
+        final Map<File,Prelinked> byFile = new HashMap<File,Prelinked>();
+        for (Iterator<Prelinked> iter = prelinks.iterator(); iter.hasNext();) {
+            Prelinked prelink = iter.next();
+            if (prelink.prelinked()) {
+                files.add(prelink.file());
+                byFile.put(prelink.file(), prelink);
+            }
+        }
+        final int[] errors = new int[1];
+        FileBatch.Run(files, jobs, new FileBatch.Task<Prelinked>() {
+                public Prelinked run(File file) throws IOException {
+                    Prelinked prelink = byFile.get(file);
+                    prelink.readExtent();
+                    return prelink;
+                }
+            }, new FileBatch.Handler<Prelinked>() {
+                public void done(File file, Prelinked prelink, Exception error) {
+                    if (error != null) {
+                        stderr.println("Error reading program headers of "+file.getPath()+": "+error.getMessage());
+                        errors[0]++;
+                    }
+                }
+            });
+        return errors[0];
+    }
+
+    /// writes the JSON record of the file.
+    void write(ResultWriter results) {
+        results.begin("prelink").field("file",file_.getPath()).field("prelinked",prelinked());
+        if (prelinked())
+            results.hexField("addr",addr_);
+        if (extent_ != null)
+            results.hexField("start",extent_[0]).hexField("end",extent_[1]);
+        results.end();
+    }
+
+    /// prints the overlapping extents and the free gaps between the extents.
+    static void PrintAnalysis(Collection<Prelinked> prelinks, ResultWriter results) {
+        PrintStream out = results.stream();
+        IntervalTree<Prelinked> tree = new IntervalTree<Prelinked>();
+        for (Iterator<Prelinked> iter = prelinks.iterator(); iter.hasNext();) {
+            Prelinked prelink = iter.next();
+            if (prelink.extent() != null)
+                tree.add(prelink.extent()[0], prelink.extent()[1], prelink);
+        }
+
+        List<IntervalTree.Interval<Prelinked>[]> overlaps = tree.overlaps();
+        for (int ii=0; ii<overlaps.size(); ++ii) {
+            IntervalTree.Interval<Prelinked> i1 = overlaps.get(ii)[0];
+            IntervalTree.Interval<Prelinked> i2 = overlaps.get(ii)[1];
+            long start = Math.max(i1.start_,i2.start_);
+            long end = Math.min(i1.end_,i2.end_);
+            if (ResultWriter.Json)
+                results.begin("overlap").hexField("start",start).hexField("end",end)
+                    .field("file",i1.value_.file().getPath()).field("other",i2.value_.file().getPath()).end();
+            else
+                out.println(String.format("overlap @ 0x%08X-0x%08X: %s and %s",
+                                          start, end, i1.value_.filename(), i2.value_.filename()));
+        }
 
-        System.out.println("Processed "+Integer.toString(count)+" files"
-                           +(errors>0 ? String.format(" (%d errors).",errors) : "."));
-        return errors>0 ? -5 : 0;
+        List<long[]> gaps = tree.gaps();
+        for (int ii=0; ii<gaps.size(); ++ii) {
+            if (ResultWriter.Json)
+                results.begin("gap").hexField("start",gaps.get(ii)[0]).hexField("end",gaps.get(ii)[1])
+                    .field("size",gaps.get(ii)[1]-gaps.get(ii)[0]).end();
+            else
+                out.println(String.format("free    @ 0x%08X-0x%08X: 0x%X bytes",
+                                          gaps.get(ii)[0], gaps.get(ii)[1], gaps.get(ii)[1]-gaps.get(ii)[0]));
+        }
+        if (!ResultWriter.Json)
+            out.println(String.format("%d overlaps, %d gaps.", overlaps.size(), gaps.size()));
     }
 
 }
@@ -0,0 +1,61 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.*;
+
+/// Common interface of the random access file implementations ElfReader can read through.
+/// All multi-byte values are little endian.
+public interface RandomAccessData {
+
+    /// access patterns readers can hint with setAccessPattern:
+    public static final int AccessNormal = 0;     // adapt to the observed pattern
+    public static final int AccessSequential = 1; // reading forward through large ranges
+    public static final int AccessRandom = 2;     // small reads all over the file
+
+    public byte readByte() throws IOException;
+
+    public int readUnsignedByte() throws IOException;
+
+    public int readUnsignedShort() throws IOException;
+
+    public long readUnsignedInt() throws IOException;
+
+    /// reads exactly len bytes into b starting at off.
+    public void readFully(byte[] b, int off, int len) throws IOException;
+
+    /// reads exactly dst.remaining() bytes into dst.
+    public void readFully(ByteBuffer dst) throws IOException;
+
+    /// reads len 32 bit values into dst starting at off, as their raw bits (mask with
+    /// 0xFFFFFFFFL for the unsigned value).
+    public void readUnsignedInts(int[] dst, int off, int len) throws IOException;
+
+    /// the len bytes at ofs as a little endian buffer, without moving the file pointer.
+    /// mapped files return a view of the mapping, others a copy.
+    public ByteBuffer slice(long ofs, int len) throws IOException;
+
+    public void writeByte(byte b) throws IOException;
+
+    public void writeUnsignedByte(int v) throws IOException;
+
+    public void writeUnsignedShort(int v) throws IOException;
+
+    public void writeUnsignedInt(long v) throws IOException;
+
+    public void skipBytes(int bytes) throws IOException;
+
+    public void seek(long ofs) throws IOException;
+
+    public long getFilePointer();
+
+    public long length() throws IOException;
+
+    /// hints how the file is about to be accessed, implementations may ignore it.
+    public void setAccessPattern(int pattern);
+
+    /// writes any pending modifications to the file.
+    public void flush() throws IOException;
+
+    public void close() throws IOException;
+
+}
@@ -0,0 +1,136 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.util.*;
+
+/// Keeps readonly ElfReaders open between requests of the server, together with what was
+/// parsed from the file (sections, prelinked address and metadata cache entry), so repeated
+/// queries against the same libraries neither reopen nor reparse them.
+/// An ElfReader has a file pointer, so a reader is only used by one JNIRenamer at a time:
+/// acquire takes an idle reader out of the cache and release puts it back. Readers of files
+/// whose FileFingerprint changed since they were opened are closed instead of being reused,
+/// and the least recently used idle readers are closed beyond MaxReaders.
+public class ReaderCache {
+
+    public static int MaxReaders = 64;
+
+    /// the cache used by JNIRenamer, null unless running as a server.
+    public static ReaderCache Shared = null;
+
+    static public class Item {
+        public File file_;
+        public FileFingerprint fingerprint_;
+        public ElfReader reader_;
+        public long prelinked_;
+        public MetadataCache.Entry cacheEntry_;
+    }
+
+    /// idle readers by canonical path, in order of use:
+    private LinkedHashMap<String,List<Item>> idle_ = new LinkedHashMap<String,List<Item>>(16, 0.75f, true);
+    private int idleCount_ = 0;
+
+    /// returns an idle reader of the file which is still up to date, null if there is none.
+    public Item acquire(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        List<Item> closing = new ArrayList<Item>();
+        Item found = null;
+        synchronized (this) {
+            List<Item> items = idle_.get(key);
+            while (found == null && items != null && !items.isEmpty()) {
+                Item item = items.remove(items.size()-1);
+                --idleCount_;
+                if (upToDate(item))
+                    found = item;
+                else
+                    closing.add(item);
+            }
+            if (items != null && items.isEmpty())
+                idle_.remove(key);
+        }
+        Close(closing);
+        return found;
+    }
+
+    /// creates the item for a reader about to be opened for the file, so the file is
+    /// identified by its fingerprint from before it was read.
+    public Item create(File file) throws IOException {
+        Item item = new Item();
+        item.file_ = file;
+        item.fingerprint_ = FileFingerprint.Of(file);
+        return item;
+    }
+
+    /// puts the reader back so it can be acquired again.
+    public void release(Item item) throws IOException {
+        if (!upToDate(item)) {
+            item.reader_.close();
+            return;
+        }
+        String key = item.file_.getCanonicalPath();
+        List<Item> closing = new ArrayList<Item>();
+        synchronized (this) {
+            List<Item> items = idle_.get(key);
+            if (items == null) {
+                items = new ArrayList<Item>();
+                idle_.put(key, items);
+            }
+            items.add(item);
+            ++idleCount_;
+            // close least recently used readers beyond the limit:
+            for (Iterator<List<Item>> iter = idle_.values().iterator();
+                 idleCount_ > MaxReaders && iter.hasNext();) {
+                List<Item> lru = iter.next();
+                while (idleCount_ > MaxReaders && !lru.isEmpty()) {
+                    closing.add(lru.remove(0));
+                    --idleCount_;
+                }
+                if (lru.isEmpty())
+                    iter.remove();
+            }
+        }
+        Close(closing);
+    }
+
+    /// closes the idle readers of the file, used after the file was changed.
+    public void invalidate(File file) throws IOException {
+        List<Item> items;
+        synchronized (this) {
+            items = idle_.remove(file.getCanonicalPath());
+            if (items != null)
+                idleCount_ -= items.size();
+        }
+        if (items != null)
+            Close(items);
+    }
+
+    /// closes all the idle readers.
+    public void clear() {
+        List<Item> closing = new ArrayList<Item>();
+        synchronized (this) {
+            for (Iterator<List<Item>> iter = idle_.values().iterator(); iter.hasNext();)
+                closing.addAll(iter.next());
+            idle_.clear();
+            idleCount_ = 0;
+        }
+        Close(closing);
+    }
+
+    public synchronized int size() {
+        return idleCount_;
+    }
+
+    private static boolean upToDate(Item item) {
+        return item.fingerprint_.matches(item.file_);
+    }
+
+    private static void Close(List<Item> items) {
+        for (int ii=0; ii<items.size(); ++ii) {
+            try {
+                items.get(ii).reader_.close();
+            } catch (IOException e) {
+                // nothing to do, the reader is dropped anyway
+            }
+        }
+    }
+
+}
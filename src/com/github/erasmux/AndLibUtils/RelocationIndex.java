@@ -0,0 +1,124 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.util.*;
+
+/// Relative relocations of a library (R_ARM_RELATIVE, R_AARCH64_RELATIVE, ...) by the
+/// address of the word they relocate, as parallel primitive arrays sorted by address.
+/// The words of position independent libraries which point into the library are only
+/// filled in by these relocations when it is loaded: with REL relocations (32 bit ARM)
+/// the word itself holds the address relative to the load address, but with RELA
+/// relocations the word is usually 0 and the address is the addend of the relocation.
+/// Lookups are by binary search, a scan going forward through a section can instead
+/// advance a cursor from lowerBound for a single merged pass.
+public class RelocationIndex {
+
+    private boolean rela_;
+    private long[] addrs_;
+    private long[] addends_;
+    private long[] entryOfs_; // file offset of the relocation entry
+    private int size_ = 0;
+
+    RelocationIndex(boolean rela, int capacity) {
+        rela_ = rela;
+        addrs_ = new long[capacity];
+        addends_ = new long[capacity];
+        entryOfs_ = new long[capacity];
+    }
+
+    /// the relocation type which adds the load address to the addend, for the given
+    /// e_machine. -1 if unknown.
+    public static long RelativeType(int machine) {
+        switch (machine) {
+        case 3:   return 8;    // EM_386: R_386_RELATIVE
+        case 40:  return 23;   // EM_ARM: R_ARM_RELATIVE
+        case 62:  return 8;    // EM_X86_64: R_X86_64_RELATIVE
+        case 183: return 1027; // EM_AARCH64: R_AARCH64_RELATIVE
+        default:  return -1;
+        }
+    }
+
+    /// true if the addends are explicit (RELA) rather than stored in the relocated words.
+    public boolean rela() {
+        return rela_;
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    /// adds a relocation, they are expected in order of address (linkers sort the relative
+    /// relocations), sort must be called if they might not be.
+    void add(long addr, long addend, long entryOfs) {
+        if (size_ == addrs_.length) {
+            int capacity = Math.max(16, 2*size_);
+            addrs_ = Arrays.copyOf(addrs_, capacity);
+            addends_ = Arrays.copyOf(addends_, capacity);
+            entryOfs_ = Arrays.copyOf(entryOfs_, capacity);
+        }
+        addrs_[size_] = addr;
+        addends_[size_] = addend;
+        entryOfs_[size_] = entryOfs;
+        ++size_;
+    }
+
+    /// sorts the relocations by address if they are not sorted already.
+    void sort() {
+        boolean sorted = true;
+        for (int ii=1; sorted && ii<size_; ++ii)
+            sorted = addrs_[ii-1] <= addrs_[ii];
+        if (sorted)
+            return;
+        Integer[] order = new Integer[size_];
+        for (int ii=0; ii<size_; ++ii)
+            order[ii] = ii;
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer r1, Integer r2) {
+                    long a1 = addrs_[r1], a2 = addrs_[r2];
+                    return a1 < a2 ? -1 : a1 > a2 ? 1 : 0;
+                }
+            });
+        long[] addrs = new long[size_], addends = new long[size_], entryOfs = new long[size_];
+        for (int ii=0; ii<size_; ++ii) {
+            addrs[ii] = addrs_[order[ii]];
+            addends[ii] = addends_[order[ii]];
+            entryOfs[ii] = entryOfs_[order[ii]];
+        }
+        addrs_ = addrs;
+        addends_ = addends;
+        entryOfs_ = entryOfs;
+    }
+
+    /// index of the first relocation at or after addr (size() if there is none).
+    public int lowerBound(long addr) {
+        int lo = 0, hi = size_;
+        while (lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if (addrs_[mid] < addr)
+                lo = mid+1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /// index of the relocation of the word at addr, -1 if it is not relocated.
+    public int find(long addr) {
+        int ind = lowerBound(addr);
+        return ind < size_ && addrs_[ind] == addr ? ind : -1;
+    }
+
+    public long addr(int ind) {
+        return addrs_[ind];
+    }
+
+    /// the explicit addend of a RELA relocation (0 for REL relocations).
+    public long addend(int ind) {
+        return addends_[ind];
+    }
+
+    /// file offset of the relocation entry, its addend is at entryOfs+2*wordSize.
+    public long entryOfs(int ind) {
+        return entryOfs_[ind];
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+
+/// Writes the results of the commands as they are found, either as the usual text lines or,
+/// with --format ndjson, as one JSON object per line (newline delimited JSON).
+/// A record is built field by field into a reused byte buffer and written with a single
+/// write, numbers and hex addresses are formatted directly into the buffer, so writing a
+/// record does not allocate. Non ASCII characters are written as \\u escapes so the output
+/// is plain ASCII whatever the platform encoding.
+public class ResultWriter {
+
+    public static String FormatText = "text";
+    public static String FormatNdjson = "ndjson";
+
+    /// whether records are written as JSON, set by --format.
+    public static boolean Json = false;
+
+    private static final byte[] HexDigits = "0123456789ABCDEF".getBytes();
+
+    private PrintStream out_;
+    private byte[] buf_ = new byte[256];
+    private int len_ = 0;
+    private boolean firstField_ = true;
+
+    public ResultWriter(PrintStream out) {
+        out_ = out;
+    }
+
+    public PrintStream stream() {
+        return out_;
+    }
+
+    /// starts a JSON record of the given type.
+    public ResultWriter begin(String type) {
+        len_ = 0;
+        put('{');
+        firstField_ = true;
+        return field("type", type);
+    }
+
+    public ResultWriter field(String name, String value) {
+        name(name);
+        if (value == null)
+            put("null");
+        else
+            putString(value);
+        return this;
+    }
+
+    public ResultWriter field(String name, long value) {
+        name(name);
+        putDecimal(value);
+        return this;
+    }
+
+    public ResultWriter field(String name, boolean value) {
+        name(name);
+        put(value ? "true" : "false");
+        return this;
+    }
+
+    /// an address as a string formatted like "0x%08X".
+    public ResultWriter hexField(String name, long value) {
+        name(name);
+        put('"');
+        putHex(value, 8);
+        put('"');
+        return this;
+    }
+
+    /// ends and writes the current JSON record.
+    public void end() {
+        put('}');
+        put('\n');
+        flushLine();
+    }
+
+    /// writes a text line of a hex address formatted like "0x%08X", followed by suffix if
+    /// it is not null.
+    public void hexLine(long value, String suffix) {
+        len_ = 0;
+        putHex(value, 8);
+        if (suffix != null) {
+            put(' ');
+            put(suffix);
+        }
+        put('\n');
+        flushLine();
+    }
+
+    /// appends value formatted like "0x%0<digits>X" to sb without going through String.format.
+    public static StringBuilder AppendHex(StringBuilder sb, long value, int digits) {
+        sb.append("0x");
+        int shift = HexShift(value, digits);
+        for (; shift >= 0; shift -= 4)
+            sb.append((char) HexDigits[(int)(value >>> shift) & 0xF]);
+        return sb;
+    }
+
+    /// value formatted like "0x%08X".
+    public static String Hex(long value) {
+        return AppendHex(new StringBuilder(18), value, 8).toString();
+    }
+
+    private static int HexShift(long value, int digits) {
+        int shift = (digits-1)*4;
+        while (shift < 60 && (value >>> (shift+4)) != 0)
+            shift += 4;
+        return shift;
+    }
+
+    private void name(String name) {
+        if (!firstField_)
+            put(',');
+        firstField_ = false;
+        putString(name);
+        put(':');
+    }
+
+    private void putHex(long value, int digits) {
+        put('0');
+        put('x');
+        int shift = HexShift(value, digits);
+        ensure(shift/4 + 1);
+        for (; shift >= 0; shift -= 4)
+            buf_[len_++] = HexDigits[(int)(value >>> shift) & 0xF];
+    }
+
+    private void putDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            put(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        ensure(19);
+        int start = len_;
+        do {
+            buf_[len_++] = (byte)('0' + (int)(value % 10));
+            value /= 10;
+        } while (value != 0);
+        // digits were written in reverse:
+        for (int ii=start, jj=len_-1; ii<jj; ++ii, --jj) {
+            byte tmp = buf_[ii];
+            buf_[ii] = buf_[jj];
+            buf_[jj] = tmp;
+        }
+    }
+
+    private void putString(String str) {
+        put('"');
+        for (int ii=0; ii<str.length(); ++ii) {
+            char ch = str.charAt(ii);
+            if (ch == '"' || ch == '\\') {
+                put('\\');
+                put(ch);
+            }
+            else if (ch == '\n')
+                put("\\n");
+            else if (ch == '\t')
+                put("\\t");
+            else if (ch < 0x20 || ch > 0x7E) {
+                put("\\u");
+                ensure(4);
+                for (int shift=12; shift>=0; shift-=4)
+                    buf_[len_++] = HexDigits[(ch >>> shift) & 0xF];
+            }
+            else
+                put(ch);
+        }
+        put('"');
+    }
+
+    private void put(String str) {
+        ensure(str.length());
+        for (int ii=0; ii<str.length(); ++ii)
+            buf_[len_++] = (byte) str.charAt(ii);
+    }
+
+    private void put(char ch) {
+        ensure(1);
+        buf_[len_++] = (byte) ch;
+    }
+
+    private void ensure(int more) {
+        if (len_+more > buf_.length) {
+            byte[] buf = new byte[Math.max(buf_.length*2, len_+more)];
+            System.arraycopy(buf_, 0, buf, 0, len_);
+            buf_ = buf;
+        }
+    }
+
+    private void flushLine() {
+        out_.write(buf_, 0, len_);
+        len_ = 0;
+    }
+
+}
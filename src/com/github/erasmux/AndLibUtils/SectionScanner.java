@@ -0,0 +1,169 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/// Scans the content of a section (as returned by ElfReader.sectionSlice) in chunks which
+/// run concurrently as ForkJoin tasks: in the pool of the caller when called from a
+/// FileBatch task, so a batch of files does not start more threads than its jobs, and in
+/// the common pool otherwise, so a single large library uses all the cores.
+/// Each chunk also reads the end of the previous chunk (the overlap) so strings and word
+/// pairs crossing a chunk boundary are found by the chunk they end in, and the results of
+/// the chunks are merged in order of offset.
+public class SectionScanner {
+
+    /// whether chunks are scanned concurrently, for comparing with a sequential scan.
+    public static boolean Parallel = true;
+
+    /// sections are split into chunks of about this many bytes.
+    public static int ChunkSize = 256*1024;
+
+    private static final int CopySize = 8*1024;
+
+    /// decides what a pair of consecutive words (after relocation) matches.
+    public interface PairMatcher {
+        /// index of what the words match, -1 if nothing. called concurrently.
+        public int match(long first, long second);
+    }
+
+    /// searches the section data for all the strings of the matcher, like
+    /// ElfReader.seekStrings. ofs is the offset of data in the section.
+    public static void ScanStrings(final ByteBuffer data, final long ofs, StringMatcher matcher) {
+        matcher.reset();
+        final int overlap = matcher.maxLength()+1;
+        final StringMatcher proto = matcher;
+        List<StringMatcher> parts = Run(data.limit(), 1, new Chunk<StringMatcher>() {
+                public StringMatcher scan(int start, int end) {
+                    // from the overlap on the matcher is in the same state as if it had
+                    // scanned the whole section, only matches ending in the chunk count:
+                    int from = Math.max(0, start-overlap);
+                    StringMatcher part = proto.fork(from > 0 && data.get(from-1) != 0);
+                    if (data.hasArray())
+                        part.feed(data.array(), data.arrayOffset()+from, end-from, ofs+from);
+                    else {
+                        // mapped data is copied in small pieces which stay in the cache:
+                        byte[] buf = new byte[Math.min(CopySize, end-from)];
+                        ByteBuffer src = data.duplicate();
+                        src.position(from);
+                        for (int pos=from; pos<end; ) {
+                            int n = Math.min(buf.length, end-pos);
+                            src.get(buf, 0, n);
+                            part.feed(buf, 0, n, ofs+pos);
+                            pos += n;
+                        }
+                    }
+                    part.dropMatchesBefore(ofs+start);
+                    return part;
+                }
+            });
+        for (int ii=0; ii<parts.size(); ++ii)
+            matcher.addMatches(parts.get(ii));
+    }
+
+    /// finds the pairs of consecutive address sized words of the section data which the
+    /// matcher matches. words at addresses with a RELA relocation in relocs are replaced
+    /// by its addend plus base. dataAddr is the address of data.
+    /// returns {index of the first word of the pair, match} for each pair, in order.
+    public static long[] ScanWordPairs(final ByteBuffer data, final int wordSize, final long dataAddr,
+                                       final RelocationIndex relocs, final long base,
+                                       final PairMatcher matcher) {
+        final long words = data.limit()/wordSize;
+        final boolean rela = relocs != null && relocs.rela();
+        List<long[]> parts = Run((int) words, wordSize, new Chunk<long[]>() {
+                public long[] scan(int start, int end) {
+                    long[] found = new long[16];
+                    int count = 0;
+                    // the overlap is the word before the chunk:
+                    int word = Math.max(0, start-1);
+                    int reloc = rela ? relocs.lowerBound(dataAddr+(long)word*wordSize) : Integer.MAX_VALUE;
+                    long last = -1; // never a valid offset
+                    for (; word<end; ++word) {
+                        long addr = dataAddr+(long)word*wordSize;
+                        long value = wordSize == 8 ? data.getLong(word*8) : data.getInt(word*4) & 0xFFFFFFFFL;
+                        if (rela && reloc < relocs.size()) {
+                            while (reloc < relocs.size() && relocs.addr(reloc) < addr)
+                                ++reloc;
+                            if (reloc < relocs.size() && relocs.addr(reloc) == addr)
+                                value = relocs.addend(reloc)+base;
+                        }
+                        if (word >= start && word > 0) {
+                            int match = matcher.match(last, value);
+                            if (match >= 0) {
+                                if (count+2 > found.length)
+                                    found = Arrays.copyOf(found, 2*found.length);
+                                found[count++] = word-1;
+                                found[count++] = match;
+                            }
+                        }
+                        last = value;
+                    }
+                    return Arrays.copyOf(found, count);
+                }
+            });
+        int total = 0;
+        for (int ii=0; ii<parts.size(); ++ii)
+            total += parts.get(ii).length;
+        long[] found = new long[total];
+        int pos = 0;
+        for (int ii=0; ii<parts.size(); ++ii) {
+            long[] part = parts.get(ii);
+            System.arraycopy(part, 0, found, pos, part.length);
+            pos += part.length;
+        }
+        return found;
+    }
+
+    /// scans the range [start, end) of the units (bytes or words) of a section.
+    private interface Chunk<T> {
+        public T scan(int start, int end);
+    }
+
+    /// scans [0, size) split into chunks of about ChunkSize bytes, returns the results of
+    /// the chunks in order. unitSize is the size of the units in bytes.
+    private static <T> List<T> Run(int size, int unitSize, Chunk<T> chunk) {
+        int chunks = (int) Math.max(1, (long)size*unitSize / Math.max(1, ChunkSize));
+        List<T> results = new ArrayList<T>(chunks);
+        if (!Parallel || chunks == 1) {
+            results.add(chunk.scan(0, size));
+            return results;
+        }
+        results.addAll(new Split<T>(chunk, size, chunks, 0, chunks).invoke());
+        return results;
+    }
+
+    /// the chunks [first, last) of a range of size units split into chunks chunks, split in
+    /// halves until single chunks.
+    static private class Split<T> extends RecursiveTask<List<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private Chunk<T> chunk_;
+        private int size_;
+        private int chunks_;
+        private int first_;
+        private int last_;
+
+        public Split(Chunk<T> chunk, int size, int chunks, int first, int last) {
+            chunk_ = chunk;
+            size_ = size;
+            chunks_ = chunks;
+            first_ = first;
+            last_ = last;
+        }
+
+        protected List<T> compute() {
+            if (last_-first_ == 1) {
+                int start = (int)((long)size_*first_/chunks_);
+                int end = (int)((long)size_*last_/chunks_);
+                return Collections.singletonList(chunk_.scan(start, end));
+            }
+            int mid = (first_+last_) >>> 1;
+            Split<T> right = new Split<T>(chunk_, size_, chunks_, mid, last_);
+            right.fork();
+            List<T> results = new ArrayList<T>(new Split<T>(chunk_, size_, chunks_, first_, mid).compute());
+            results.addAll(right.join());
+            return results;
+        }
+    }
+
+}
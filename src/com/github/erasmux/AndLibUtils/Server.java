@@ -0,0 +1,336 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import javax.management.*;
+
+/// Keeps a JVM running which handles the commands sent to it over a local unix domain
+/// socket, so callers running many commands do not pay for starting (and warming up) a
+/// JVM every time. Each connection carries a single command which runs on its own thread,
+/// so commands run concurrently, and readonly ElfReaders are kept open between commands in
+/// ReaderCache.Shared. The statistics of a command sent with --stats are the difference
+/// of the global Stats over the command, so such a command runs alone: it waits for the
+/// commands running and the commands sent meanwhile wait for it.
+/// The client sends its working directory and the arguments of the command, the server
+/// answers with frames of the output and error streams of the command and its exit status.
+public class Server {
+
+    public static String ServeCmd = "serve";
+    public static String ClientCmd = "client";
+    public static String ShutdownCmd = "shutdown";
+
+    private static final int Magic = 0x414C5553; // "ALUS"
+    private static final byte FrameOut = 'O';
+    private static final byte FrameErr = 'E';
+    private static final byte FrameExit = 'X';
+
+    /// set while running as a server, global flags can then not be changed by commands.
+    static volatile boolean Serving = false;
+
+    private File socket_;
+    private ServerSocketChannel channel_;
+    private ExecutorService executor_;
+    private volatile boolean running_ = true;
+    /// held exclusively by commands sent with --stats, shared by the others:
+    private ReadWriteLock commands_ = new ReentrantReadWriteLock(true);
+
+    public Server(File socket) {
+        socket_ = socket;
+    }
+
+    /// the socket used if none is given: $XDG_RUNTIME_DIR/andlibutils.sock or a socket
+    /// of the user in the temporary directory.
+    public static File DefaultSocket() {
+        String dir = System.getenv("XDG_RUNTIME_DIR");
+        if (dir != null && dir.length() > 0)
+            return new File(dir, "andlibutils.sock");
+        return new File(System.getProperty("java.io.tmpdir"), "andlibutils-"+System.getProperty("user.name")+".sock");
+    }
+
+    /// accepts and handles connections until a shutdown command is received.
+    public void run(PrintStream log) throws IOException {
+        if (socket_.exists()) {
+            // a socket left over by a server which did not exit cleanly can be replaced,
+            // but not one of a running server:
+            if (Ping(socket_))
+                throw new IOException("A server is already listening on "+socket_.getPath());
+            socket_.delete();
+        }
+        channel_ = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel_.bind(UnixDomainSocketAddress.of(socket_.toPath()));
+        executor_ = Executors.newCachedThreadPool();
+        ReaderCache.Shared = new ReaderCache();
+        Serving = true;
+        Stats.Enabled = true;
+        RegisterMXBean(log);
+        log.println("Listening on "+socket_.getPath());
+        try {
+            while (running_) {
+                final SocketChannel client;
+                try {
+                    client = channel_.accept();
+                } catch (ClosedChannelException e) {
+                    break; // shutdown
+                }
+                executor_.execute(new Runnable() {
+                        public void run() {
+                            handle(client);
+                        }
+                    });
+            }
+        } finally {
+            Serving = false;
+            executor_.shutdown();
+            try {
+                executor_.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ReaderCache.Shared.clear();
+            ReaderCache.Shared = null;
+            channel_.close();
+            socket_.delete();
+        }
+    }
+
+    /// exposes Stats over JMX, connect with jconsole or another JMX client to the server's pid.
+    private static void RegisterMXBean(PrintStream log) {
+        try {
+            ObjectName name = new ObjectName("com.github.erasmux.AndLibUtils:type=Stats");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name))
+                server.registerMBean(new Stats.MXBean(), name);
+        } catch (Exception e) {
+            log.println("Warning: could not register statistics MXBean: "+e.getMessage());
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+            if (in.readInt() != Magic)
+                return;
+            String cwd = in.readUTF();
+            String[] args = new String[in.readInt()];
+            for (int ii=0; ii<args.length; ++ii)
+                args[ii] = in.readUTF();
+
+            PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameStream(out, FrameOut)), true);
+            PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameStream(out, FrameErr)), true);
+            int status;
+            if (args.length == 1 && args[0].equals(ShutdownCmd)) {
+                stdout.println("Server shutting down.");
+                running_ = false;
+                channel_.close();
+                status = 0;
+            }
+            else {
+                Lock lock = Arrays.asList(args).contains("--stats") ? commands_.writeLock() : commands_.readLock();
+                lock.lock();
+                try {
+                    status = CommandLine.Execute(ResolveArgs(args, new File(cwd)), stdout, stderr);
+                } catch (RuntimeException e) {
+                    stderr.println("Error: "+e);
+                    status = -3;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            stdout.flush();
+            stderr.flush();
+            synchronized (out) {
+                out.writeByte(FrameExit);
+                out.writeInt(status);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away, nothing to report it to
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /// the server can not change its working directory for each command, so when the client
+    /// runs in another directory the arguments which are paths relative to it are made
+    /// absolute: arguments naming existing files, the values of -o and -m and globs.
+    static String[] ResolveArgs(String[] args, File cwd) throws IOException {
+        if (cwd.getCanonicalFile().equals(new File(".").getCanonicalFile()))
+            return args;
+        String[] resolved = new String[args.length];
+        for (int ii=0; ii<args.length; ++ii) {
+            String arg = args[ii];
+            boolean path = (ii > 0 && (args[ii-1].equals("-o") || args[ii-1].equals("-m"))) ||
+                (!arg.startsWith("-") && (new File(cwd, arg).exists() || arg.indexOf('*') >= 0));
+            resolved[ii] = path && !new File(arg).isAbsolute() ? new File(cwd, arg).getPath() : arg;
+        }
+        return resolved;
+    }
+
+    /// runs the command on the server listening on the given socket, copying its output
+    /// to stdout and stderr. returns the exit status of the command.
+    public static int Request(File socket, String[] args, PrintStream stdout, PrintStream stderr) throws IOException {
+        SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(Magic);
+            out.writeUTF(new File(".").getCanonicalPath());
+            out.writeInt(args.length);
+            for (int ii=0; ii<args.length; ++ii)
+                out.writeUTF(args[ii]);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            byte[] buf = new byte[8192];
+            while (true) {
+                byte type = in.readByte();
+                if (type == FrameExit)
+                    return in.readInt();
+                int length = in.readInt();
+                if (length > buf.length)
+                    buf = new byte[length];
+                in.readFully(buf, 0, length);
+                PrintStream target = type == FrameErr ? stderr : stdout;
+                target.write(buf, 0, length);
+                target.flush();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /// true if a server accepts connections on the socket.
+    static boolean Ping(File socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath())).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /// writes everything written to it as frames of the given type, the output and error
+    /// streams of a command share the socket so the frames are written under its lock.
+    static private class FrameStream extends OutputStream {
+        private DataOutputStream out_;
+        private byte type_;
+
+        public FrameStream(DataOutputStream out, byte type) {
+            out_ = out;
+            type_ = type;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            synchronized (out_) {
+                out_.writeByte(type_);
+                out_.writeInt(len);
+                out_.write(b, off, len);
+                out_.flush();
+            }
+        }
+    }
+
+    // Functions for Command line interface:
+
+    public static String Usage() {
+        return ServeCmd+" [-s socket] | "+ClientCmd+" [-s socket] <option> [<flags>]";
+    }
+
+    static void PrintUsage(PrintStream stdout) {
+        stdout.println("usage: "+CommandLine.Command+" "+ServeCmd+" [-s socket]");
+        stdout.println("       "+CommandLine.Command+" "+ClientCmd+" [-s socket] <option> [<flags>]");
+        stdout.println("       "+CommandLine.Command+" "+ClientCmd+" [-s socket] "+ShutdownCmd);
+    }
+
+    public static boolean CheckArgs(String args[]) {
+        return args.length >= 1 && (args[0].equals(ServeCmd) || args[0].equals(ClientCmd));
+    }
+
+    public static boolean Help(String args[], PrintStream stdout) {
+        if (args.length >= 2 && (args[1].equals(ServeCmd) || args[1].equals(ClientCmd))) {
+            PrintUsage(stdout);
+            stdout.println();
+            stdout.println(ServeCmd+"  - Keeps running and handles the commands sent by "+ClientCmd+", concurrently");
+            stdout.println("         and keeping the libraries open between commands");
+            stdout.println(ClientCmd+" - Runs the given command on the server, with the exit status of the command");
+            stdout.println("         "+ClientCmd+" "+ShutdownCmd+" stops the server");
+            stdout.println(" -s socket : unix domain socket to use (default is "+DefaultSocket().getPath()+")");
+            stdout.println(" global flags (--no-cache, --format) must be given to "+ServeCmd+", they apply to all commands");
+            stdout.println(" and the server refuses commands sent with other ones");
+            stdout.println(" commands sent with --stats run alone, so their statistics only count their own work");
+            return true;
+        }
+        return false;
+    }
+
+    public static int Run(String args[], PrintStream stdout, PrintStream stderr) {
+        if (!CheckArgs(args)) {
+            PrintUsage(stdout);
+            return -1;
+        }
+        File socket = DefaultSocket();
+        int first = 1;
+        if (args.length > 2 && args[1].equals("-s")) {
+            socket = new File(args[2]);
+            first = 3;
+        }
+
+        if (args[0].equals(ServeCmd)) {
+            if (first < args.length) {
+                PrintUsage(stdout);
+                return -1;
+            }
+            try {
+                new Server(socket).run(stdout);
+                return 0;
+            } catch (IOException e) {
+                stderr.println("Error running server on "+socket.getPath()+": "+e.getMessage());
+                return -3;
+            }
+        }
+
+        if (first >= args.length) {
+            PrintUsage(stdout);
+            return -1;
+        }
+        // global flags were already taken by this JVM, they are passed on so the server can
+        // refuse commands it would run differently. the format is always sent, the default
+        // text format must be refused by a server started with another one (shutdown is
+        // not a command and takes no flags):
+        List<String> request = new ArrayList<String>();
+        boolean shutdown = args.length == first+1 && args[first].equals(ShutdownCmd);
+        if (!MetadataCache.Enabled && !shutdown)
+            request.add("--no-cache");
+        if (!shutdown) {
+            request.add("--format");
+            request.add(ResultWriter.Json ? ResultWriter.FormatNdjson : ResultWriter.FormatText);
+        }
+        // the statistics of interest are those of the server running the command, which
+        // prints them to the error stream sent back:
+        if (Stats.Enabled && !shutdown)
+            request.add("--stats");
+        request.addAll(Arrays.asList(args).subList(first, args.length));
+        try {
+            return Request(socket, request.toArray(new String[request.size()]), stdout, stderr);
+        } catch (IOException e) {
+            stderr.println("Error connecting to server on "+socket.getPath()+": "+e.getMessage());
+            return -3;
+        }
+    }
+
+}
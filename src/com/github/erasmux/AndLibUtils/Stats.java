@@ -0,0 +1,138 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// Counters of the I/O done by BufferedRandomAccessFile and timers of the phases of the
+/// commands, reported by --stats and exposed over JMX by the server.
+/// Everything is only recorded while Enabled: the I/O counters are only touched next to
+/// actual system calls, and the timers check Enabled once in Start, so the disabled path
+/// costs a static field read. The totals are shared by all threads (several files are
+/// processed in parallel), so a phase's time is the sum over the files.
+public class Stats {
+
+    public static boolean Enabled = false;
+
+    // I/O counters:
+    public static final int Syscalls = 0;
+    public static final int BytesRead = 1;
+    public static final int BytesWritten = 2;
+    public static final int Refills = 3;
+    public static final int Discards = 4; // refills which jumped away from buffered data
+    private static final String[] CounterNames = {
+        "syscalls", "bytes read", "bytes written", "buffer refills", "buffer discards"
+    };
+
+    // phases:
+    public static final int Open = 0;
+    public static final int ReadSections = 1;
+    public static final int StringScan = 2;
+    public static final int DataScan = 3;
+    public static final int Patch = 4;
+    public static final int Trailers = 5;
+    public static final int Extents = 6;
+    public static final int Analysis = 7;
+    public static final int Dedup = 8;
+    private static final String[] PhaseNames = {
+        "open", "readSections", "string scan", "data scan", "patch",
+        "prelink trailers", "prelink extents", "prelink analysis", "dedup"
+    };
+
+    private static final AtomicLongArray counters_ = new AtomicLongArray(CounterNames.length);
+    private static final AtomicLongArray phaseNanos_ = new AtomicLongArray(PhaseNames.length);
+    private static final AtomicLongArray phaseCalls_ = new AtomicLongArray(PhaseNames.length);
+
+    public static void Count(int counter, long value) {
+        if (Enabled)
+            counters_.addAndGet(counter, value);
+    }
+
+    /// starts timing a phase, pass the result to Stop. returns 0 if not Enabled.
+    public static long Start() {
+        return Enabled ? System.nanoTime() : 0;
+    }
+
+    public static void Stop(int phase, long start) {
+        if (start != 0) {
+            phaseNanos_.addAndGet(phase, System.nanoTime()-start);
+            phaseCalls_.incrementAndGet(phase);
+        }
+    }
+
+    /// all the counters and timers, to report what changed since with Print.
+    public static long[] Snapshot() {
+        long[] values = new long[CounterNames.length + 2*PhaseNames.length];
+        int ind = 0;
+        for (int ii=0; ii<CounterNames.length; ++ii)
+            values[ind++] = counters_.get(ii);
+        for (int ii=0; ii<PhaseNames.length; ++ii) {
+            values[ind++] = phaseNanos_.get(ii);
+            values[ind++] = phaseCalls_.get(ii);
+        }
+        return values;
+    }
+
+    /// prints the counters and the phases which ran since the given snapshot.
+    public static void Print(PrintStream out, long[] since) {
+        long[] now = Snapshot();
+        int ind = 0;
+        out.println("I/O:");
+        for (int ii=0; ii<CounterNames.length; ++ii, ++ind)
+            out.println(String.format("  %-16s %12d", CounterNames[ii], now[ind]-since[ind]));
+        out.println("phases:");
+        for (int ii=0; ii<PhaseNames.length; ++ii, ind+=2) {
+            long calls = now[ind+1]-since[ind+1];
+            if (calls > 0)
+                out.println(String.format("  %-16s %9.3f ms  (%d times)", PhaseNames[ii],
+                                          (now[ind]-since[ind])/1e6, calls));
+        }
+    }
+
+    /// the statistics as exposed over JMX.
+    public interface StatsMXBean {
+        public boolean isEnabled();
+        public void setEnabled(boolean enabled);
+        public Map<String,Long> getCounters();
+        public Map<String,Long> getPhaseMillis();
+        public Map<String,Long> getPhaseCalls();
+        public int getOpenReaders();
+    }
+
+    static public class MXBean implements StatsMXBean {
+        public boolean isEnabled() {
+            return Enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            Enabled = enabled;
+        }
+
+        public Map<String,Long> getCounters() {
+            Map<String,Long> values = new LinkedHashMap<String,Long>();
+            for (int ii=0; ii<CounterNames.length; ++ii)
+                values.put(CounterNames[ii], counters_.get(ii));
+            return values;
+        }
+
+        public Map<String,Long> getPhaseMillis() {
+            Map<String,Long> values = new LinkedHashMap<String,Long>();
+            for (int ii=0; ii<PhaseNames.length; ++ii)
+                values.put(PhaseNames[ii], phaseNanos_.get(ii)/1000000);
+            return values;
+        }
+
+        public Map<String,Long> getPhaseCalls() {
+            Map<String,Long> values = new LinkedHashMap<String,Long>();
+            for (int ii=0; ii<PhaseNames.length; ++ii)
+                values.put(PhaseNames[ii], phaseCalls_.get(ii));
+            return values;
+        }
+
+        public int getOpenReaders() {
+            ReaderCache readers = ReaderCache.Shared;
+            return readers != null ? readers.size() : 0;
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.util.*;
+
+/// Aho-Corasick automaton searching for several null terminated strings at once, so all
+/// of them can be found with a single pass over the data. Just like ElfReader.seekString
+/// a string matches a null terminated string in the searched data if it is the whole
+/// string (exact match) or a suffix of it.
+public class StringMatcher {
+
+    static public class Match {
+        public long ofs_;
+        public boolean exact_;
+
+        public Match(long ofs, boolean exact) {
+            ofs_ = ofs;
+            exact_ = exact;
+        }
+    }
+
+    private String[] strs_;
+    private int[] strPattern_; // index of the (unique) pattern for each string
+    private int[] patternLength_;
+    private List<List<Match>> matches_; // per pattern
+
+    private int[] charClass_ = new int[256]; // byte -> column in next_ (0 = not in any pattern)
+    private int classes_;
+    private int[][] next_; // transitions [state][class]
+    private int[] output_; // pattern ending at state, -1 if none
+    private int[] outputLink_; // next state in failure chain with an output, -1 if none
+
+    private int state_;
+    private int length_; // length of current string (since last null)
+
+    public StringMatcher(String[] strs) {
+        strs_ = strs;
+        strPattern_ = new int[strs.length];
+
+        // assign character classes and unique patterns:
+        Map<String,Integer> patterns = new HashMap<String,Integer>();
+        Map<Character,Integer> wideChars = new HashMap<Character,Integer>();
+        classes_ = 2; // 0 = other, 1 = null terminator
+        for(int ii=0; ii<strs.length; ++ii) {
+            String str = strs[ii];
+            Integer pattern = patterns.get(str);
+            if (pattern == null) {
+                pattern = patterns.size();
+                patterns.put(str, pattern);
+            }
+            strPattern_[ii] = pattern;
+            for(int jj=0; jj<str.length(); ++jj) {
+                char ch = str.charAt(jj);
+                if (ch < 256) {
+                    if (ch != 0 && charClass_[ch] == 0)
+                        charClass_[ch] = classes_++;
+                }
+                // chars outside of the byte range can never match, give them their own class:
+                else if (!wideChars.containsKey(ch))
+                    wideChars.put(ch, classes_++);
+            }
+        }
+        charClass_[0] = 1;
+
+        // build trie:
+        int maxStates = 1;
+        for(int ii=0; ii<strs.length; ++ii)
+            maxStates += strs[ii].length()+1;
+        next_ = new int[maxStates][];
+        output_ = new int[maxStates];
+        outputLink_ = new int[maxStates];
+        next_[0] = new int[classes_];
+        Arrays.fill(output_, -1);
+        int states = 1;
+        patternLength_ = new int[patterns.size()];
+        for(Map.Entry<String,Integer> entry : patterns.entrySet()) {
+            String str = entry.getKey();
+            int state = 0;
+            for(int jj=0; jj<=str.length(); ++jj) {
+                int cls = jj<str.length() ? classOf(str.charAt(jj),wideChars) : 1;
+                if (next_[state][cls] == 0) {
+                    next_[states] = new int[classes_];
+                    next_[state][cls] = states++;
+                }
+                state = next_[state][cls];
+            }
+            output_[state] = entry.getValue();
+            patternLength_[entry.getValue()] = str.length();
+        }
+
+        // compute failure links breadth first, turning the trie into a dense automaton:
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0, tail = 0;
+        outputLink_[0] = -1;
+        for(int cls=0; cls<classes_; ++cls) {
+            int child = next_[0][cls];
+            if (child != 0) {
+                fail[child] = 0;
+                outputLink_[child] = -1;
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for(int cls=0; cls<classes_; ++cls) {
+                int child = next_[state][cls];
+                if (child != 0) {
+                    int f = next_[fail[state]][cls];
+                    fail[child] = f;
+                    outputLink_[child] = output_[f] >= 0 ? f : outputLink_[f];
+                    queue[tail++] = child;
+                }
+                else
+                    next_[state][cls] = next_[fail[state]][cls];
+            }
+        }
+
+        matches_ = new ArrayList<List<Match>>(patterns.size());
+        for(int ii=0; ii<patterns.size(); ++ii)
+            matches_.add(new ArrayList<Match>());
+        reset();
+    }
+
+    private StringMatcher(StringMatcher other) {
+        strs_ = other.strs_;
+        strPattern_ = other.strPattern_;
+        patternLength_ = other.patternLength_;
+        charClass_ = other.charClass_;
+        classes_ = other.classes_;
+        next_ = other.next_;
+        output_ = other.output_;
+        outputLink_ = other.outputLink_;
+        matches_ = new ArrayList<List<Match>>(patternLength_.length);
+        for(int ii=0; ii<patternLength_.length; ++ii)
+            matches_.add(new ArrayList<Match>());
+        reset();
+    }
+
+    /// number of strings searched for.
+    public int count() {
+        return strs_.length;
+    }
+
+    public String string(int ind) {
+        return strs_[ind];
+    }
+
+    /// length of the longest string searched for.
+    public int maxLength() {
+        int max = 0;
+        for(int ii=0; ii<patternLength_.length; ++ii)
+            max = Math.max(max, patternLength_[ii]);
+        return max;
+    }
+
+    /// matches found for the given string (as ordered in the constructor), in order of offset.
+    public List<Match> matches(int ind) {
+        return matches_.get(strPattern_[ind]);
+    }
+
+    /// replaces the matches of the given string, for matches which are already known
+    /// (e.g. from a cache) without searching.
+    public void setMatches(int ind, List<Match> matches) {
+        List<Match> current = matches_.get(strPattern_[ind]);
+        current.clear();
+        current.addAll(matches);
+    }
+
+    /// a matcher for the same strings sharing the automaton of this one, to search another
+    /// part of the data concurrently. if midString the data it is fed starts in the middle
+    /// of a string, which can then not be an exact match.
+    public StringMatcher fork(boolean midString) {
+        StringMatcher part = new StringMatcher(this);
+        part.length_ = midString ? maxLength()+1 : 0;
+        return part;
+    }
+
+    /// drops the matches of strings whose null terminator is before the given offset.
+    public void dropMatchesBefore(long ofs) {
+        for(int pattern=0; pattern<matches_.size(); ++pattern) {
+            List<Match> matches = matches_.get(pattern);
+            int drop = 0;
+            while (drop < matches.size() && matches.get(drop).ofs_+patternLength_[pattern] < ofs)
+                ++drop;
+            matches.subList(0, drop).clear();
+        }
+    }
+
+    /// appends the matches of a matcher forked from this one, which searched data after the
+    /// data this one searched.
+    public void addMatches(StringMatcher part) {
+        for(int pattern=0; pattern<matches_.size(); ++pattern)
+            matches_.get(pattern).addAll(part.matches_.get(pattern));
+    }
+
+    /// clears all matches found and restarts the search.
+    public void reset() {
+        for(int ii=0; ii<matches_.size(); ++ii)
+            matches_.get(ii).clear();
+        state_ = 0;
+        length_ = 0;
+    }
+
+    /// feeds the next byte of the searched data, ofs is its offset.
+    public void feed(int ch, long ofs) {
+        state_ = next_[state_][charClass_[ch]];
+        if (ch == 0) {
+            for(int state = output_[state_] >= 0 ? state_ : outputLink_[state_];
+                state >= 0; state = outputLink_[state]) {
+                int pattern = output_[state];
+                int n = patternLength_[pattern];
+                matches_.get(pattern).add(new Match(ofs-n, length_ == n));
+            }
+            length_ = 0;
+        }
+        else
+            ++length_;
+    }
+
+    /// feeds len bytes of data starting at off, ofs is the offset of the first of them.
+    public void feed(byte[] data, int off, int len, long ofs) {
+        int[] charClass = charClass_;
+        int[][] next = next_;
+        int state = state_;
+        int length = length_;
+        for (int ii=off, end=off+len; ii<end; ++ii) {
+            int ch = data[ii] & 0xFF;
+            state = next[state][charClass[ch]];
+            if (ch != 0) {
+                ++length;
+                continue;
+            }
+            for(int match = output_[state] >= 0 ? state : outputLink_[state];
+                match >= 0; match = outputLink_[match]) {
+                int pattern = output_[match];
+                int n = patternLength_[pattern];
+                matches_.get(pattern).add(new Match(ofs+(ii-off)-n, length == n));
+            }
+            length = 0;
+        }
+        state_ = state;
+        length_ = length;
+    }
+
+    private int classOf(char ch, Map<Character,Integer> wideChars) {
+        return ch < 256 ? charClass_[ch] : wideChars.get(ch);
+    }
+
+}
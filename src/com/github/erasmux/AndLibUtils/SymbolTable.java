@@ -0,0 +1,456 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/// Symbols of a symbol table section of a library: the dynamic symbols (.dynsym with its
+/// string table .dynstr) or the static ones (.symtab with .strtab).
+/// A name is looked up through the hash table of the dynamic symbols (.gnu.hash, or the
+/// SysV .hash) when there is one, which only reads the symbols of a single bucket, so
+/// checking a few names does not parse the whole table. Prefix queries (and lookups in
+/// tables without a hash) use an index of all the named symbols sorted by name, built on
+/// first use. Both work directly on the sections (views of the file when it is mapped):
+/// the string table is the pool the names are compared in, Strings are only created for
+/// the symbols returned.
+public class SymbolTable {
+
+    public static final String Dynamic = ".dynsym";
+    public static final String Static = ".symtab";
+
+    // symbol types (low nibble of st_info):
+    public static final int TypeObject = 1;
+    public static final int TypeFunc = 2;
+
+    // symbol bindings (high nibble of st_info):
+    public static final int BindLocal = 0;
+    public static final int BindGlobal = 1;
+    public static final int BindWeak = 2;
+
+    private String section_;
+    private ByteBuffer symbols_; // in the byte order of the file
+    private ByteBuffer strings_;
+    private ByteBuffer gnuHash_; // null if there is none
+    private ByteBuffer hash_;    // null if there is none
+    private int wordSize_;
+    private int entrySize_;
+    private int count_;
+    private int[] sorted_; // named symbols sorted by name, built by sortedIndex
+
+    private SymbolTable(String section, ByteBuffer symbols, ByteBuffer strings, int wordSize) {
+        section_ = section;
+        symbols_ = symbols;
+        strings_ = strings;
+        wordSize_ = wordSize;
+        entrySize_ = wordSize == 8 ? 24 : 16;
+        count_ = symbols.limit() / entrySize_;
+    }
+
+    /// the symbols of the given section (Dynamic or Static) of the file the reader reads,
+    /// which must have read its sections. returns null if the file has no such section.
+    public static SymbolTable Load(ElfReader reader, String section) throws IOException {
+        ByteBuffer symbols = reader.sectionSlice(section);
+        ByteBuffer strings = reader.sectionSlice(section.equals(Dynamic) ? ".dynstr" : ".strtab");
+        if (symbols == null || strings == null)
+            return null;
+        SymbolTable table = new SymbolTable(section, symbols, strings, reader.wordSize());
+        // the hash tables only index the dynamic symbols:
+        if (section.equals(Dynamic)) {
+            table.gnuHash_ = reader.sectionSlice(".gnu.hash");
+            table.hash_ = reader.sectionSlice(".hash");
+        }
+        return table;
+    }
+
+    public String section() {
+        return section_;
+    }
+
+    /// number of symbols, including the null symbol at index 0.
+    public int count() {
+        return count_;
+    }
+
+    public String name(int ind) {
+        long ofs = nameOfs(ind);
+        StringBuilder builder = new StringBuilder();
+        for (long ii=ofs; ii<strings_.limit(); ++ii) {
+            int ch = strings_.get((int) ii) & 0xFF;
+            if (ch == 0)
+                break;
+            builder.append((char)ch);
+        }
+        return builder.toString();
+    }
+
+    public long value(int ind) {
+        int ofs = ind*entrySize_;
+        return wordSize_ == 8 ? symbols_.getLong(ofs+8) : symbols_.getInt(ofs+4) & 0xFFFFFFFFL;
+    }
+
+    public long size(int ind) {
+        int ofs = ind*entrySize_;
+        return wordSize_ == 8 ? symbols_.getLong(ofs+16) : symbols_.getInt(ofs+8) & 0xFFFFFFFFL;
+    }
+
+    public int type(int ind) {
+        return info(ind) & 0xF;
+    }
+
+    public int binding(int ind) {
+        return info(ind) >> 4;
+    }
+
+    /// index of the section the symbol is defined in, 0 if it is undefined (imported).
+    public int sectionIndex(int ind) {
+        return symbols_.getShort(ind*entrySize_ + (wordSize_ == 8 ? 6 : 14)) & 0xFFFF;
+    }
+
+    /// true if the symbol is defined in this file and visible to other files.
+    public boolean exported(int ind) {
+        int binding = binding(ind);
+        return sectionIndex(ind) != 0 && (binding == BindGlobal || binding == BindWeak);
+    }
+
+    /// index of a symbol with the given name, -1 if there is none.
+    public int find(String name) {
+        byte[] key = Bytes(name);
+        if (gnuHash_ != null)
+            return findGnuHash(key);
+        if (hash_ != null)
+            return findSysvHash(key);
+        int[] sorted = sortedIndex();
+        int ind = lowerBound(sorted, key);
+        return ind < sorted.length && compareName(sorted[ind], key, false) == 0 ? sorted[ind] : -1;
+    }
+
+    /// indexes of all the symbols whose name starts with prefix, in order of their names.
+    public int[] withPrefix(String prefix) {
+        byte[] key = Bytes(prefix);
+        int[] sorted = sortedIndex();
+        int first = lowerBound(sorted, key);
+        int last = first;
+        while (last < sorted.length && compareName(sorted[last], key, true) == 0)
+            ++last;
+        return Arrays.copyOfRange(sorted, first, last);
+    }
+
+    /// .gnu.hash: {nbuckets, symoffset, bloomSize, bloomShift}, a bloom filter of bloomSize
+    /// words, nbuckets buckets and a chain of hashes for the symbols from symoffset on, in
+    /// which the low bit marks the last symbol of a bucket.
+    private int findGnuHash(byte[] key) {
+        ByteBuffer hash = gnuHash_;
+        if (hash.limit() < 16)
+            return -1;
+        int buckets = hash.getInt(0);
+        int symOffset = hash.getInt(4);
+        int bloomSize = hash.getInt(8);
+        int bloomShift = hash.getInt(12);
+        long bucketsOfs = 16 + (long)bloomSize*wordSize_;
+        long chainOfs = bucketsOfs + 4L*buckets;
+        if (buckets <= 0 || bloomSize <= 0 || chainOfs > hash.limit())
+            return -1;
+
+        int h = GnuHash(key);
+        int bits = wordSize_*8;
+        int bloomOfs = 16 + (int)(((h & 0xFFFFFFFFL) / bits) % bloomSize)*wordSize_;
+        long word = wordSize_ == 8 ? hash.getLong(bloomOfs) : hash.getInt(bloomOfs) & 0xFFFFFFFFL;
+        long mask = (1L << ((h & 0xFFFFFFFFL) % bits)) | (1L << (((h & 0xFFFFFFFFL) >>> bloomShift) % bits));
+        if ((word & mask) != mask)
+            return -1;
+
+        int ind = hash.getInt((int)(bucketsOfs + 4*((h & 0xFFFFFFFFL) % buckets)));
+        if (ind == 0)
+            return -1;
+        for (; ind >= symOffset && ind < count_; ++ind) {
+            long ofs = chainOfs + 4L*(ind-symOffset);
+            if (ofs+4 > hash.limit())
+                break;
+            int chained = hash.getInt((int) ofs);
+            if ((chained|1) == (h|1) && compareName(ind, key, false) == 0)
+                return ind;
+            if ((chained & 1) != 0)
+                break;
+        }
+        return -1;
+    }
+
+    /// .hash: {nbucket, nchain}, nbucket buckets and nchain chain links.
+    private int findSysvHash(byte[] key) {
+        ByteBuffer hash = hash_;
+        if (hash.limit() < 8)
+            return -1;
+        int buckets = hash.getInt(0);
+        int chains = hash.getInt(4);
+        if (buckets <= 0 || chains < 0 || 8 + 4L*buckets + 4L*chains > hash.limit())
+            return -1;
+        int ind = hash.getInt(8 + 4*(int)((SysvHash(key) & 0xFFFFFFFFL) % buckets));
+        // a malformed chain could loop, it can not be longer than the table:
+        for (int steps=0; ind > 0 && ind < count_ && ind < chains && steps < chains; ++steps) {
+            if (compareName(ind, key, false) == 0)
+                return ind;
+            ind = hash.getInt(8 + 4*buckets + 4*ind);
+        }
+        return -1;
+    }
+
+    private static int GnuHash(byte[] key) {
+        int h = 5381;
+        for (int ii=0; ii<key.length; ++ii)
+            h = h*33 + (key[ii] & 0xFF);
+        return h;
+    }
+
+    private static int SysvHash(byte[] key) {
+        int h = 0;
+        for (int ii=0; ii<key.length; ++ii) {
+            h = (h << 4) + (key[ii] & 0xFF);
+            int g = h & 0xF0000000;
+            if (g != 0)
+                h ^= g >>> 24;
+            h &= ~g;
+        }
+        return h;
+    }
+
+    /// the named symbols sorted by name, built the first time it is needed.
+    private synchronized int[] sortedIndex() {
+        if (sorted_ != null)
+            return sorted_;
+        List<Integer> named = new ArrayList<Integer>(count_);
+        for (int ii=1; ii<count_; ++ii) {
+            long ofs = nameOfs(ii);
+            if (ofs > 0 && ofs < strings_.limit() && strings_.get((int) ofs) != 0)
+                named.add(ii);
+        }
+        Collections.sort(named, new Comparator<Integer>() {
+                public int compare(Integer sym1, Integer sym2) {
+                    return compareNames(nameOfs(sym1), nameOfs(sym2));
+                }
+            });
+        int[] sorted = new int[named.size()];
+        for (int ii=0; ii<sorted.length; ++ii)
+            sorted[ii] = named.get(ii);
+        sorted_ = sorted;
+        return sorted_;
+    }
+
+    /// index in sorted of the first symbol whose name is not less than key.
+    private int lowerBound(int[] sorted, byte[] key) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if (compareName(sorted[mid], key, false) < 0)
+                lo = mid+1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /// compares the name of the symbol with key as unsigned bytes, if prefix only the
+    /// first key.length bytes of the name are compared.
+    private int compareName(int ind, byte[] key, boolean prefix) {
+        long ofs = nameOfs(ind);
+        for (int ii=0; ii<key.length; ++ii, ++ofs) {
+            int ch = ofs < strings_.limit() ? strings_.get((int) ofs) & 0xFF : 0;
+            int cmp = ch - (key[ii] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        if (prefix || ofs >= strings_.limit())
+            return 0;
+        return strings_.get((int) ofs) != 0 ? 1 : 0;
+    }
+
+    /// compares the null terminated names at the given offsets of the string table.
+    private int compareNames(long ofs1, long ofs2) {
+        int limit = strings_.limit();
+        while (true) {
+            int ch1 = ofs1 < limit ? strings_.get((int) ofs1) & 0xFF : 0;
+            int ch2 = ofs2 < limit ? strings_.get((int) ofs2) & 0xFF : 0;
+            if (ch1 != ch2 || ch1 == 0)
+                return ch1 - ch2;
+            ++ofs1;
+            ++ofs2;
+        }
+    }
+
+    private long nameOfs(int ind) {
+        return symbols_.getInt(ind*entrySize_) & 0xFFFFFFFFL;
+    }
+
+    private int info(int ind) {
+        return symbols_.get(ind*entrySize_ + (wordSize_ == 8 ? 4 : 12)) & 0xFF;
+    }
+
+    /// names are compared byte by byte, one char per byte like ElfReader.readString.
+    private static byte[] Bytes(String str) {
+        byte[] bytes = new byte[str.length()];
+        for (int ii=0; ii<bytes.length; ++ii)
+            bytes[ii] = (byte) str.charAt(ii);
+        return bytes;
+    }
+
+    // Functions for Command line interface:
+
+    public static String CommandName = "symbols";
+
+    /// prefix of the exported native methods looked up by name by the JVM.
+    public static String JNIPrefix = "Java_";
+
+    public static String Usage() {
+        return CommandName+" [-s] [-j N] [-p prefix | -n name ...] <files>";
+    }
+
+    static void PrintUsage(PrintStream stdout) {
+        stdout.println("usage: "+CommandLine.Command+" "+Usage());
+    }
+
+    public static boolean CheckArgs(String args[]) {
+        return args.length >= 2 && args[0].equals(CommandName);
+    }
+
+    public static boolean Help(String args[], PrintStream stdout) {
+        if (args.length >= 2 && args[1].equals(CommandName)) {
+            PrintUsage(stdout);
+            stdout.println();
+            stdout.println("Lists the symbols the specified files export, by default the JNI functions");
+            stdout.println("(the symbols starting with \""+JNIPrefix+"\").");
+            stdout.println(" -p prefix  : list the exported symbols starting with prefix instead");
+            stdout.println(" -n name    : only look up the given symbol (can be given several times),");
+            stdout.println("              using the hash table of the dynamic symbols");
+            stdout.println(" -s         : use the static symbol table (.symtab) instead of the dynamic one");
+            stdout.println(" -j N       : process up to N files in parallel (default is number of cores)");
+            stdout.println(" <files> can also be directories (all "+FileBatch.DefaultGlob+" files under them are processed)");
+            stdout.println(" or glob patterns such as \"system/lib/*.so\"");
+            stdout.println(" returns 0 if any symbol was found, 1 if none was found");
+            return true;
+        }
+        return false;
+    }
+
+    public static int Run(String args[], PrintStream stdout, final PrintStream stderr) {
+        if (!CheckArgs(args)) {
+            PrintUsage(stdout);
+            return -1;
+        }
+
+        String prefix = JNIPrefix;
+        final List<String> names = new ArrayList<String>();
+        String section = Dynamic;
+        int jobs = FileBatch.DefaultJobs();
+        List<String> inputs = new LinkedList<String>();
+        for (int ii=1; ii<args.length; ++ii) {
+            if (args[ii].equals("-p") && (ii+1)<args.length)
+                prefix = args[++ii];
+            else if (args[ii].equals("-n") && (ii+1)<args.length)
+                names.add(args[++ii]);
+            else if (args[ii].equals("-s"))
+                section = Static;
+            else if (args[ii].equals("-j") && (ii+1)<args.length) {
+                jobs = FileBatch.ParseJobs(args[++ii]);
+                if (jobs < 0) {
+                    stderr.println("Error: invalid number of jobs: "+args[ii]);
+                    return -1;
+                }
+            }
+            else inputs.add(args[ii]);
+        }
+        if (inputs.isEmpty()) {
+            PrintUsage(stdout);
+            return -1;
+        }
+
+        final boolean multi = inputs.size() > 1 || FileBatch.IsMulti(inputs.get(0));
+        List<File> files;
+        try {
+            files = FileBatch.ExpandFiles(inputs);
+        } catch (IOException e) {
+            stderr.println("Error listing files: "+e.getMessage());
+            return -3;
+        }
+
+        final String finalPrefix = prefix;
+        final String finalSection = section;
+        final int[] found = new int[1];
+        final int[] errors = new int[1];
+        final PrintStream out = stdout;
+        FileBatch.Run(files, jobs, new FileBatch.Task<FileBatch.Output>() {
+                public FileBatch.Output run(File file) throws IOException {
+                    FileBatch.Output output = new FileBatch.Output();
+                    output.status_ = ProcessFile(file, finalSection, finalPrefix, names, output.out());
+                    return output;
+                }
+            }, new FileBatch.Handler<FileBatch.Output>() {
+                public void done(File file, FileBatch.Output output, Exception error) {
+                    if (error != null) {
+                        stderr.println("Error processing file "+file.getPath()+": "+error.getMessage());
+                        errors[0]++;
+                        return;
+                    }
+                    if (output.hasOutput() && multi && !ResultWriter.Json)
+                        out.println(file.getPath()+":");
+                    output.print(out, null);
+                    if (output.status_ == 0)
+                        found[0]++;
+                }
+            });
+
+        if (multi) {
+            if (ResultWriter.Json)
+                new ResultWriter(stdout).begin("summary").field("files",files.size())
+                    .field("found",found[0]).field("errors",errors[0]).end();
+            else
+                stdout.println(String.format("Processed %d files, found symbols in %d files%s",
+                                             files.size(), found[0],
+                                             errors[0]>0 ? String.format(" (%d errors).",errors[0]) : "."));
+        }
+        if (errors[0] > 0)
+            return -5;
+        return found[0] > 0 ? 0 : 1;
+    }
+
+    /// prints the exported symbols of the file which have one of the given names, or if
+    /// there are none which start with prefix. returns 0 if any was found, 1 otherwise.
+    static int ProcessFile(File file, String section, String prefix, List<String> names,
+                           PrintStream out) throws IOException {
+        ElfReader reader = new ElfReader(file, "r");
+        SymbolTable table;
+        try {
+            if (!reader.valid())
+                throw new IOException("not a valid ELF file");
+            reader.readSections();
+            table = Load(reader, section);
+        } finally {
+            reader.close();
+        }
+        if (table == null)
+            return 1;
+
+        int[] symbols;
+        if (names.isEmpty())
+            symbols = table.withPrefix(prefix);
+        else {
+            symbols = new int[names.size()];
+            for (int ii=0; ii<symbols.length; ++ii)
+                symbols[ii] = table.find(names.get(ii));
+        }
+
+        ResultWriter results = new ResultWriter(out);
+        int found = 0;
+        for (int ii=0; ii<symbols.length; ++ii) {
+            int ind = symbols[ii];
+            if (ind < 0 || !table.exported(ind))
+                continue;
+            if (ResultWriter.Json)
+                results.begin("symbol").field("file",file.getPath()).field("name",table.name(ind))
+                    .hexField("addr",table.value(ind)).field("size",table.size(ind)).end();
+            else
+                results.hexLine(table.value(ind), table.name(ind));
+            ++found;
+        }
+        return found > 0 ? 0 : 1;
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.github.erasmux.AndLibUtils;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/// Reads the last bytes (the prelink trailer) of many files with a single positional
+/// read per file using AsynchronousFileChannel, keeping up to InFlight files open at once.
+/// The read buffers are pooled and each channel is closed as soon as its read finished
+/// (or failed), so the number of open files never exceeds InFlight.
+public class TrailerReader {
+
+    public static int InFlight = 256;
+
+    private int size_;
+    private ExecutorService executor_;
+    private Semaphore slots_ = new Semaphore(InFlight);
+    private ConcurrentLinkedQueue<ByteBuffer> pool_ = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /// reads trailers of size bytes, completing the reads on a pool of threads threads.
+    public TrailerReader(int size, int threads) {
+        size_ = size;
+        executor_ = Executors.newFixedThreadPool(Math.max(1,threads), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TrailerReader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /// reads the trailers of all the files. the handler is called on the calling thread in
+    /// the order of the files, as soon as the file and all the files before it were read,
+    /// with the trailer, or a null trailer if the file is shorter than the trailer, or the
+    /// error reading it.
+    public void readAll(List<File> files, FileBatch.Handler<byte[]> handler) {
+        int count = files.size();
+        final byte[][] trailers = new byte[count][];
+        final Exception[] errors = new Exception[count];
+        final AtomicIntegerArray finished = new AtomicIntegerArray(count);
+        final CountDownLatch done = new CountDownLatch(count);
+        int next = 0; // next file to hand to the handler
+        try {
+            for (int ii=0; ii<count; ++ii) {
+                slots_.acquireUninterruptibly();
+                read(files.get(ii), ii, trailers, errors, finished, done);
+                for (; next < count && finished.get(next) != 0; ++next)
+                    handler.done(files.get(next), errors[next]==null ? trailers[next] : null, errors[next]);
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            executor_.shutdown();
+        }
+
+        for (; next < count; ++next)
+            handler.done(files.get(next), errors[next]==null ? trailers[next] : null, errors[next]);
+    }
+
+    private void read(File file, final int index, final byte[][] trailers, final Exception[] errors,
+                      final AtomicIntegerArray finished, final CountDownLatch done) {
+        final AsynchronousFileChannel channel;
+        final long pos;
+        try {
+            channel = AsynchronousFileChannel.open(file.toPath(),
+                                                   Collections.singleton(StandardOpenOption.READ),
+                                                   executor_);
+        } catch (NoSuchFileException e) {
+            // same message as for the other readers of the files:
+            finish(null, null, index, errors, finished,
+                   new FileNotFoundException(file.getPath()+" (No such file or directory)"), done);
+            return;
+        } catch (Exception e) {
+            finish(null, null, index, errors, finished, e, done);
+            return;
+        }
+        try {
+            pos = channel.size() - size_;
+        } catch (IOException e) {
+            finish(channel, null, index, errors, finished, e, done);
+            return;
+        }
+        if (pos < 0) {
+            finish(channel, null, index, errors, finished, null, done);
+            return;
+        }
+
+        ByteBuffer buf = pool_.poll();
+        if (buf == null)
+            buf = ByteBuffer.allocateDirect(size_);
+        buf.clear();
+        channel.read(buf, pos, buf, new CompletionHandler<Integer,ByteBuffer>() {
+                public void completed(Integer n, ByteBuffer buf) {
+                    if (n >= 0 && buf.hasRemaining()) {
+                        channel.read(buf, pos + buf.position(), buf, this);
+                        return;
+                    }
+                    Exception error = null;
+                    if (buf.hasRemaining())
+                        error = new EOFException("file truncated while reading");
+                    else {
+                        byte[] trailer = new byte[size_];
+                        buf.flip();
+                        buf.get(trailer);
+                        trailers[index] = trailer;
+                    }
+                    finish(channel, buf, index, errors, finished, error, done);
+                }
+
+                public void failed(Throwable e, ByteBuffer buf) {
+                    finish(channel, buf, index, errors, finished,
+                           e instanceof Exception ? (Exception) e : new IOException(e), done);
+                }
+            });
+    }
+
+    private void finish(AsynchronousFileChannel channel, ByteBuffer buf, int index, Exception[] errors,
+                        AtomicIntegerArray finished, Exception error, CountDownLatch done) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (buf != null)
+            pool_.add(buf);
+        errors[index] = error;
+        finished.set(index, 1); // publishes the trailer and error to the calling thread
+        slots_.release();
+        done.countDown();
+    }
+
+}